@@ -0,0 +1,140 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GraphBuilder;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.vividsolutions.jts.geom.Coordinate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * The per road steps of the import, one road per operation. The roads are
+ * used in turns, so the numbers are averages over the whole network.
+ * <p>
+ * prepareEdges covers the part of adding an edge that builds the way and
+ * runs the encoders, writing the edge is measured by
+ * {@link ImportBenchmark#processRoads}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HotPathBenchmark {
+
+    private static final int ROADS = 10_000;
+
+    @Param({"20", "200"})
+    int vertices;
+
+    @Param({"0.1"})
+    double junctionDensity;
+
+    private GraphHopperStorage storage;
+    private OSMPostgisReader reader;
+    private SimpleFeature[] features;
+    private Coordinate[] coordinates;
+    private RoadRecord[] records;
+    private final RoadRecord record = new RoadRecord(0);
+    private final PreparedEdges edges = new PreparedEdges();
+    private FeatureBinding binding;
+    private int next;
+    private int nextCoordinate;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        SyntheticRoads network = new SyntheticRoads(ROADS, vertices, junctionDensity, 42);
+
+        storage = new GraphBuilder(EncodingManager.create("car")).build();
+        reader = new OSMPostgisReader(storage, new HashMap<>());
+        reader.setRoadSource(network::openCursor);
+        storage.create(1000);
+        reader.processJunctions();
+
+        features = network.createFeatures().toArray(new SimpleFeature[0]);
+        List<Coordinate> tmpCoordinates = new ArrayList<>();
+        for (SimpleFeature feature : features) {
+            for (Coordinate[] part : reader.getCoords(feature)) {
+                for (Coordinate coordinate : part) {
+                    tmpCoordinates.add(coordinate);
+                }
+            }
+        }
+        coordinates = tmpCoordinates.toArray(new Coordinate[0]);
+
+        records = new RoadRecord[ROADS];
+        for (int i = 0; i < ROADS; i++) {
+            records[i] = new RoadRecord(0);
+            network.fill(i, records[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        reader.finishReading();
+        reader.getOsmIdStore().close();
+        storage.close();
+    }
+
+    private int nextRoad() {
+        if (++next == ROADS) {
+            next = 0;
+        }
+        return next;
+    }
+
+    @Benchmark
+    public List<Coordinate[]> getCoords() {
+        return reader.getCoords(features[nextRoad()]);
+    }
+
+    @Benchmark
+    public Coordinate roundCoordinate() {
+        if (++nextCoordinate == coordinates.length) {
+            nextCoordinate = 0;
+        }
+        return reader.roundCoordinate(coordinates[nextCoordinate]);
+    }
+
+    /**
+     * getCoords and roundCoordinate together with copying the attributes
+     */
+    @Benchmark
+    public RoadRecord readRoad() {
+        SimpleFeature feature = features[nextRoad()];
+        binding = reader.bind(feature, binding);
+        reader.readRoad(feature, binding, record);
+        return record;
+    }
+
+    @Benchmark
+    public double getWayLength() {
+        RoadRecord road = records[nextRoad()];
+        return reader.getWayLength(road, 0, road.getPointCount() - 1);
+    }
+
+    @Benchmark
+    public void prepareEdges(Blackhole bh) {
+        reader.prepareEdges(records[nextRoad()], edges);
+        bh.consume(edges.size());
+        edges.clear();
+    }
+}
@@ -0,0 +1,134 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.routing.util.EncodingManager;
+import com.graphhopper.storage.GraphBuilder;
+import com.graphhopper.storage.GraphHopperStorage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Import passes over a synthetic road network, each one on a fresh graph.
+ * <p>
+ * Run with -prof gc to see the allocation rate as well.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+
+    @Param({"100000"})
+    int roads;
+
+    @Param({"20"})
+    int vertices;
+
+    @Param({"0.1"})
+    double junctionDensity;
+
+    @Param({"false", "true"})
+    boolean pipeline;
+
+    SyntheticRoads network;
+
+    @Setup(Level.Trial)
+    public void createRoads() {
+        network = new SyntheticRoads(roads, vertices, junctionDensity, 42);
+    }
+
+    OSMPostgisReader createReader(GraphHopperStorage storage) {
+        Map<String, String> params = new HashMap<>();
+        params.put("pipeline", String.valueOf(pipeline));
+        params.put("coordinate_index_size", String.valueOf(roads * (long) vertices));
+
+        OSMPostgisReader reader = new OSMPostgisReader(storage, params);
+        reader.setRoadSource(network::openCursor);
+        reader.setWorkerThreads(Runtime.getRuntime().availableProcessors());
+        return reader;
+    }
+
+    /**
+     * A reader on a graph that is not created yet
+     */
+    @State(Scope.Thread)
+    public static class FreshReader {
+
+        GraphHopperStorage storage;
+        OSMPostgisReader reader;
+
+        @Setup(Level.Invocation)
+        public void open(ImportBenchmark benchmark) {
+            storage = new GraphBuilder(EncodingManager.create("car")).build();
+            reader = benchmark.createReader(storage);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            closeReader(storage, reader);
+        }
+    }
+
+    /**
+     * A reader that has found the junctions already
+     */
+    @State(Scope.Thread)
+    public static class JunctionsRead {
+
+        GraphHopperStorage storage;
+        OSMPostgisReader reader;
+
+        @Setup(Level.Invocation)
+        public void open(ImportBenchmark benchmark) {
+            storage = new GraphBuilder(EncodingManager.create("car")).build();
+            reader = benchmark.createReader(storage);
+            storage.create(1000);
+            reader.processJunctions();
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() {
+            closeReader(storage, reader);
+        }
+    }
+
+    static void closeReader(GraphHopperStorage storage, OSMPostgisReader reader) {
+        reader.finishReading();
+        reader.getOsmIdStore().close();
+        storage.close();
+    }
+
+    @Benchmark
+    public int processJunctions(FreshReader state) {
+        state.storage.create(1000);
+        state.reader.processJunctions();
+        return state.storage.getNodes();
+    }
+
+    @Benchmark
+    public int processRoads(JunctionsRead state) {
+        state.reader.processRoads();
+        return state.storage.getEdges();
+    }
+
+    @Benchmark
+    public int readGraph(FreshReader state) {
+        state.reader.readGraph();
+        return state.storage.getEdges();
+    }
+}
@@ -0,0 +1,150 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Road network generated in memory, the same for the same arguments.
+ * <p>
+ * Every road is a random walk with the given number of vertices. A share of
+ * the vertices given by the junction density is taken from a pool of points
+ * that several roads use, these become junctions. The pool is half as large
+ * as the number of such vertices, so a shared point is used about twice.
+ */
+final class SyntheticRoads {
+
+    private static final String[] FCLASSES = {"primary", "secondary", "tertiary", "residential", "service", "track"};
+    private static final String[] ONEWAYS = {"B", "F", "T", null};
+    private static final double STEP = 0.0005;
+
+    private final int roadCount;
+    private final double[][] lats;
+    private final double[][] lons;
+
+    SyntheticRoads(int roadCount, int vertexCount, double junctionDensity, long seed) {
+        this.roadCount = roadCount;
+        this.lats = new double[roadCount][vertexCount];
+        this.lons = new double[roadCount][vertexCount];
+
+        Random random = new Random(seed);
+        int poolSize = Math.max(1, (int) (roadCount * (long) vertexCount * junctionDensity / 2));
+        double[] poolLats = new double[poolSize];
+        double[] poolLons = new double[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            poolLats[i] = randomLat(random);
+            poolLons[i] = randomLon(random);
+        }
+
+        for (int road = 0; road < roadCount; road++) {
+            double lat = randomLat(random);
+            double lon = randomLon(random);
+            for (int i = 0; i < vertexCount; i++) {
+                if (random.nextDouble() < junctionDensity) {
+                    int shared = random.nextInt(poolSize);
+                    lat = poolLats[shared];
+                    lon = poolLons[shared];
+                } else {
+                    lat = Helper.round6(lat + (random.nextDouble() - 0.5) * STEP);
+                    lon = Helper.round6(lon + (random.nextDouble() - 0.5) * STEP);
+                }
+                lats[road][i] = lat;
+                lons[road][i] = lon;
+            }
+        }
+    }
+
+    private static double randomLat(Random random) {
+        return Helper.round6(54 + random.nextDouble());
+    }
+
+    private static double randomLon(Random random) {
+        return Helper.round6(20 + random.nextDouble());
+    }
+
+    int getRoadCount() {
+        return roadCount;
+    }
+
+    /**
+     * Copies a road into the record, like a cursor does
+     */
+    void fill(int road, RoadRecord record) {
+        record.clear();
+        record.osmId = road + 1;
+        record.fclass = FCLASSES[road % FCLASSES.length];
+        record.maxSpeed = road % 3 == 0 ? "50" : null;
+        record.oneway = ONEWAYS[road % ONEWAYS.length];
+        for (int i = 0; i < lats[road].length; i++) {
+            record.addPoint(lats[road][i], lons[road][i], Double.NaN);
+        }
+        record.endPart();
+    }
+
+    RoadCursor openCursor() {
+        return new RoadCursor() {
+            private int next;
+
+            @Override
+            public boolean next(RoadRecord road) {
+                if (next >= roadCount) {
+                    return false;
+                }
+                fill(next++, road);
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * The roads as GeoTools features with the columns of the roads table
+     */
+    List<SimpleFeature> createFeatures() {
+        SimpleFeatureTypeBuilder typeBuilder = new SimpleFeatureTypeBuilder();
+        typeBuilder.setName("roads");
+        typeBuilder.add("geom", MultiLineString.class);
+        typeBuilder.add("osm_id", Long.class);
+        typeBuilder.add("fclass", String.class);
+        typeBuilder.add("maxspeed", String.class);
+        typeBuilder.add("oneway", String.class);
+        typeBuilder.add("restriction", String.class);
+        typeBuilder.add("restriction_to", Long.class);
+        SimpleFeatureType type = typeBuilder.buildFeatureType();
+
+        GeometryFactory geometryFactory = new GeometryFactory();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+        RoadRecord record = new RoadRecord(0);
+        List<SimpleFeature> features = new ArrayList<>(roadCount);
+        for (int road = 0; road < roadCount; road++) {
+            fill(road, record);
+            Coordinate[] coordinates = new Coordinate[record.getPointCount()];
+            for (int i = 0; i < coordinates.length; i++) {
+                coordinates[i] = new Coordinate(record.lons[i], record.lats[i]);
+            }
+            LineString line = geometryFactory.createLineString(coordinates);
+
+            builder.add(geometryFactory.createMultiLineString(new LineString[]{line}));
+            builder.add(record.osmId);
+            builder.add(record.fclass);
+            builder.add(record.maxSpeed);
+            builder.add(record.oneway);
+            builder.add(null);
+            builder.add(null);
+            features.add(builder.buildFeature(String.valueOf(record.osmId)));
+        }
+        return features;
+    }
+}
@@ -0,0 +1,45 @@
+package com.graphhopper.reader.postgis;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Reads several cursors one after another. Each cursor is opened only when
+ * the previous one is exhausted, so at most one query is open at a time.
+ */
+class ChainedRoadCursor implements RoadCursor {
+
+    private final List<Supplier<RoadCursor>> sources;
+    private int next;
+    private RoadCursor current;
+
+    ChainedRoadCursor(List<Supplier<RoadCursor>> sources) {
+        this.sources = sources;
+    }
+
+    @Override
+    public boolean next(RoadRecord road) {
+        while (true) {
+            if (current != null) {
+                if (current.next(road)) {
+                    return true;
+                }
+                current.close();
+                current = null;
+            }
+
+            if (next >= sources.size()) {
+                return false;
+            }
+            current = sources.get(next++).get();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.util.Helper;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Maps rounded coordinates to an int state with open addressing and linear
+ * probing.
+ * <p>
+ * A coordinate rounded to 6 decimal places is packed into one long key, so
+ * neither the keys nor the values are boxed. The slots live either in plain
+ * arrays or, for very large imports, in a memory-mapped DataAccess outside of
+ * the heap. Missing keys read as 0.
+ */
+abstract class CoordinateIndex implements Closeable {
+
+    private static final double FACTOR = 1e6;
+    private static final long LAT_OFFSET = 90_000_000L;
+    private static final long LON_OFFSET = 180_000_000L;
+    private static final int LON_BITS = 29;
+    private static final long LON_MASK = (1L << LON_BITS) - 1;
+
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final long MIN_CAPACITY = 1 << 10;
+
+    private long mask;
+    private long size;
+    private long resizeAt;
+
+    /**
+     * Packs a coordinate into a non-negative key. Latitude and longitude are
+     * rounded to 6 decimal places, i.e. the same precision the reader rounds
+     * coordinates to.
+     */
+    static long key(double lat, double lon) {
+        long latFixed = Math.round(lat * FACTOR) + LAT_OFFSET;
+        long lonFixed = Math.round(lon * FACTOR) + LON_OFFSET;
+        return latFixed << LON_BITS | lonFixed;
+    }
+
+    /**
+     * Packs a coordinate given as degrees multiplied by 1e6 and rounded.
+     */
+    static long fixedKey(long latFixed, long lonFixed) {
+        return (latFixed + LAT_OFFSET) << LON_BITS | (lonFixed + LON_OFFSET);
+    }
+
+    static double lat(long key) {
+        return ((key >>> LON_BITS) - LAT_OFFSET) / FACTOR;
+    }
+
+    static double lon(long key) {
+        return ((key & LON_MASK) - LON_OFFSET) / FACTOR;
+    }
+
+    static CoordinateIndex onHeap(long expectedSize) {
+        CoordinateIndex index = new HeapIndex();
+        index.init(expectedSize);
+        return index;
+    }
+
+    /**
+     * @param tmpDir directory for the memory-mapped files, removed on close
+     */
+    static CoordinateIndex offHeap(File tmpDir, long expectedSize) {
+        CoordinateIndex index = new MMapIndex(tmpDir);
+        index.init(expectedSize);
+        return index;
+    }
+
+    private void init(long expectedSize) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+        mask = capacity - 1;
+        resizeAt = (long) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Safe to call from several threads as long as nobody puts at the same
+     * time.
+     *
+     * @return the state of the key, 0 if it was never put
+     */
+    int get(long key) {
+        long stored = key + 1;
+        for (long slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            long k = getKey(slot);
+            if (k == stored) {
+                return getValue(slot);
+            }
+            if (k == 0) {
+                return 0;
+            }
+        }
+    }
+
+    void put(long key, int value) {
+        long stored = key + 1;
+        long slot = hash(key) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            long k = getKey(slot);
+            if (k == stored) {
+                setValue(slot, value);
+                return;
+            }
+            if (k == 0) {
+                break;
+            }
+        }
+
+        set(slot, stored, value);
+        if (++size >= resizeAt) {
+            resize();
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    private void resize() {
+        long oldCapacity = mask + 1;
+        long newCapacity = oldCapacity << 1;
+        long newMask = newCapacity - 1;
+
+        Object old = detach();
+        allocate(newCapacity);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            long k = getKey(old, slot);
+            if (k == 0) {
+                continue;
+            }
+
+            long newSlot = hash(k - 1) & newMask;
+            while (getKey(newSlot) != 0) {
+                newSlot = (newSlot + 1) & newMask;
+            }
+            set(newSlot, k, getValue(old, slot));
+        }
+        release(old);
+
+        mask = newMask;
+        resizeAt = (long) (newCapacity * LOAD_FACTOR);
+    }
+
+    private static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * Allocates empty slots, all keys read as 0.
+     */
+    abstract void allocate(long capacity);
+
+    /**
+     * Hands the current slots over to the caller, who must release them.
+     */
+    abstract Object detach();
+
+    abstract long getKey(long slot);
+
+    abstract int getValue(long slot);
+
+    abstract void set(long slot, long key, int value);
+
+    abstract void setValue(long slot, int value);
+
+    abstract long getKey(Object slots, long slot);
+
+    abstract int getValue(Object slots, long slot);
+
+    abstract void release(Object slots);
+
+    @Override
+    public abstract void close();
+
+    private static class HeapIndex extends CoordinateIndex {
+
+        private long[] keys;
+        private int[] values;
+
+        @Override
+        void allocate(long capacity) {
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Coordinate index too large for the heap, use the mmap index instead");
+            }
+            keys = new long[(int) capacity];
+            values = new int[(int) capacity];
+        }
+
+        @Override
+        Object detach() {
+            Object[] old = new Object[]{keys, values};
+            keys = null;
+            values = null;
+            return old;
+        }
+
+        @Override
+        long getKey(long slot) {
+            return keys[(int) slot];
+        }
+
+        @Override
+        int getValue(long slot) {
+            return values[(int) slot];
+        }
+
+        @Override
+        void set(long slot, long key, int value) {
+            keys[(int) slot] = key;
+            values[(int) slot] = value;
+        }
+
+        @Override
+        void setValue(long slot, int value) {
+            values[(int) slot] = value;
+        }
+
+        @Override
+        long getKey(Object slots, long slot) {
+            return ((long[]) ((Object[]) slots)[0])[(int) slot];
+        }
+
+        @Override
+        int getValue(Object slots, long slot) {
+            return ((int[]) ((Object[]) slots)[1])[(int) slot];
+        }
+
+        @Override
+        void release(Object slots) {
+        }
+
+        @Override
+        public void close() {
+            keys = null;
+            values = null;
+        }
+    }
+
+    /**
+     * Keeps the slots in memory-mapped files, 12 bytes per slot: the key as
+     * two ints followed by the value.
+     */
+    private static class MMapIndex extends CoordinateIndex {
+
+        private static final int SLOT_BYTES = 12;
+
+        private final File location;
+        private final Directory dir;
+        private DataAccess slots;
+        private int generation;
+
+        MMapIndex(File tmpDir) {
+            try {
+                this.location = Files.createTempDirectory(tmpDir.toPath(), "coordinate_index").toFile();
+            } catch (IOException e) {
+                throw Utils.asUnchecked(e);
+            }
+            this.dir = new GHDirectory(location.getAbsolutePath(), DAType.MMAP).create();
+        }
+
+        @Override
+        void allocate(long capacity) {
+            slots = dir.find("slots_" + generation++);
+            slots.create(capacity * SLOT_BYTES);
+            // the files are zero filled, so every key reads as empty
+        }
+
+        @Override
+        Object detach() {
+            DataAccess old = slots;
+            slots = null;
+            return old;
+        }
+
+        @Override
+        long getKey(long slot) {
+            return getKey(slots, slot);
+        }
+
+        @Override
+        int getValue(long slot) {
+            return getValue(slots, slot);
+        }
+
+        @Override
+        void set(long slot, long key, int value) {
+            long pointer = slot * SLOT_BYTES;
+            slots.setInt(pointer, (int) (key >>> 32));
+            slots.setInt(pointer + 4, (int) key);
+            slots.setInt(pointer + 8, value);
+        }
+
+        @Override
+        void setValue(long slot, int value) {
+            slots.setInt(slot * SLOT_BYTES + 8, value);
+        }
+
+        @Override
+        long getKey(Object da, long slot) {
+            DataAccess access = (DataAccess) da;
+            long pointer = slot * SLOT_BYTES;
+            return (long) access.getInt(pointer) << 32 | (access.getInt(pointer + 4) & 0xFFFFFFFFL);
+        }
+
+        @Override
+        int getValue(Object da, long slot) {
+            return ((DataAccess) da).getInt(slot * SLOT_BYTES + 8);
+        }
+
+        @Override
+        void release(Object da) {
+            dir.remove((DataAccess) da);
+        }
+
+        @Override
+        public void close() {
+            if (slots != null) {
+                dir.remove(slots);
+                slots = null;
+            }
+            Helper.removeDir(location);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.util.EdgeIteratorState;
+import java.util.Arrays;
+
+/**
+ * Edges added by the import, copied for an
+ * {@link OSMPostgisReader.EdgeBatchListener}. Only the values the listener
+ * asked for are copied: the edge, its nodes and distance, the OSM id of the
+ * road and the tags named by {@link OSMPostgisReader.EdgeBatchListener#getTags}.
+ * <p>
+ * Batches are reused, a batch is only valid during the call of the listener.
+ */
+public final class EdgeBatch {
+
+    private final String[] tags;
+    private final int[] edgeIds;
+    private final long[] osmIds;
+    private final int[] baseNodes;
+    private final int[] adjNodes;
+    private final double[] distances;
+    private final Object[] tagValues;
+    private int size;
+
+    EdgeBatch(int capacity, String[] tags) {
+        this.tags = tags;
+        this.edgeIds = new int[capacity];
+        this.osmIds = new long[capacity];
+        this.baseNodes = new int[capacity];
+        this.adjNodes = new int[capacity];
+        this.distances = new double[capacity];
+        this.tagValues = new Object[capacity * tags.length];
+    }
+
+    /**
+     * Copies the edge into the batch
+     *
+     * @return true if the batch is full
+     */
+    boolean add(ReaderWay way, EdgeIteratorState edge, double distance) {
+        int i = size++;
+        edgeIds[i] = edge.getEdge();
+        osmIds[i] = way.getId();
+        baseNodes[i] = edge.getBaseNode();
+        adjNodes[i] = edge.getAdjNode();
+        distances[i] = distance;
+        for (int t = 0; t < tags.length; t++) {
+            tagValues[i * tags.length + t] = way.getTag(tags[t]);
+        }
+        return size == edgeIds.length;
+    }
+
+    void clear() {
+        Arrays.fill(tagValues, 0, size * tags.length, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getEdgeId(int i) {
+        return edgeIds[i];
+    }
+
+    public long getOsmId(int i) {
+        return osmIds[i];
+    }
+
+    public int getBaseNode(int i) {
+        return baseNodes[i];
+    }
+
+    public int getAdjNode(int i) {
+        return adjNodes[i];
+    }
+
+    public double getDistance(int i) {
+        return distances[i];
+    }
+
+    /**
+     * @param tag index of the tag in {@link OSMPostgisReader.EdgeBatchListener#getTags}
+     * @return the value of the tag or null if the road has none
+     */
+    public Object getTag(int i, int tag) {
+        return tagValues[i * tags.length + tag];
+    }
+}
@@ -0,0 +1,174 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.util.EdgeIteratorState;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the added edges to an {@link OSMPostgisReader.EdgeBatchListener}
+ * on a thread of its own, so the import does not run the listener.
+ * <p>
+ * The import thread copies the edges into a batch and queues the full batch.
+ * Only a fixed number of batches exists: the import waits only if the
+ * listener is behind by all of them, which bounds the memory. The batches
+ * are delivered in the order of the edges. A failure of the listener stops
+ * the delivery and is thrown on the import thread by the next
+ * {@link #add} or by {@link #close}.
+ */
+final class EdgeBatchDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EdgeBatchDispatcher.class);
+
+    private final OSMPostgisReader.EdgeBatchListener listener;
+    private final BlockingQueue<EdgeBatch> free;
+    private final BlockingQueue<EdgeBatch> pending;
+    /**
+     * Marks the end in the pending queue
+     */
+    private final EdgeBatch end;
+    private final ExecutorService executor;
+    private EdgeBatch batch;
+    private volatile Throwable failure;
+    private long waitNanos;
+
+    /**
+     * @param batchSize edges per batch
+     * @param batchCount batches that can be queued, plus the one filled by
+     * the import and the one being delivered
+     */
+    EdgeBatchDispatcher(OSMPostgisReader.EdgeBatchListener listener, int batchSize, int batchCount) {
+        this.listener = listener;
+        String[] tags = listener.getTags();
+        int count = Math.max(1, batchCount) + 2;
+        this.free = new ArrayBlockingQueue<>(count);
+        for (int i = 0; i < count; i++) {
+            free.add(new EdgeBatch(Math.max(1, batchSize), tags));
+        }
+        // one more slot for the end marker
+        this.pending = new ArrayBlockingQueue<>(count + 1);
+        this.end = new EdgeBatch(0, tags);
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "postgis-edge-listener");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.submit(this::deliver);
+    }
+
+    /**
+     * Called on the import thread for every added edge
+     */
+    void add(ReaderWay way, EdgeIteratorState edge, double distance) {
+        if (batch == null) {
+            batch = take(free);
+        }
+        if (batch.add(way, edge, distance)) {
+            put(batch);
+            batch = null;
+        }
+    }
+
+    private void deliver() {
+        try {
+            while (true) {
+                EdgeBatch next = pending.take();
+                if (next == end) {
+                    return;
+                }
+
+                if (failure == null) {
+                    try {
+                        listener.edgesAdded(next);
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                        LOGGER.error("Edge listener failed, the remaining edges are not delivered", e);
+                    }
+                }
+                next.clear();
+                free.put(next);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivers the last batch and waits until the listener got all edges
+     */
+    void close() {
+        if (batch != null && batch.size() > 0) {
+            enqueue(batch);
+        }
+        batch = null;
+        enqueue(end);
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.info("Waiting for the edge listener, " + pending.size() + " batches queued");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw Utils.asUnchecked(e);
+        }
+        if (waitNanos > 0) {
+            LOGGER.info("The import waited " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms for the edge listener");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the delivery without waiting for the listener, called if the
+     * import failed. The queued edges are dropped.
+     */
+    void abort() {
+        batch = null;
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private EdgeBatch take(BlockingQueue<EdgeBatch> queue) {
+        checkFailure();
+        EdgeBatch next = queue.poll();
+        if (next != null) {
+            return next;
+        }
+
+        long start = System.nanoTime();
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utils.asUnchecked(e);
+        }
+        waitNanos += System.nanoTime() - start;
+        return next;
+    }
+
+    private void put(EdgeBatch next) {
+        checkFailure();
+        enqueue(next);
+    }
+
+    private void enqueue(EdgeBatch next) {
+        try {
+            pending.put(next);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    private void checkFailure() {
+        Throwable e = failure;
+        if (e != null) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+}
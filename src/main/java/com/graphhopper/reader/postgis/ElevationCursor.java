@@ -0,0 +1,110 @@
+package com.graphhopper.reader.postgis;
+
+import java.util.Arrays;
+
+/**
+ * Fills the elevation of the roads of another cursor. It reads ahead
+ * {@link #BATCH_SIZE} roads and hands all their points without elevation to
+ * the sampler at once, so a sampler can look them up in bulk. Points the
+ * sampler leaves at NaN get 0.
+ */
+class ElevationCursor implements RoadCursor {
+
+    static final int BATCH_SIZE = 256;
+
+    interface Sampler {
+
+        /**
+         * Fills the NaN elevations of the points
+         */
+        void sample(double[] lats, double[] lons, double[] eles, int count);
+    }
+
+    private final RoadCursor source;
+    private final Sampler sampler;
+    private final RoadRecord[] batch = new RoadRecord[BATCH_SIZE];
+    private int size;
+    private int next;
+    private boolean exhausted;
+
+    private double[] lats = new double[1024];
+    private double[] lons = new double[1024];
+    private double[] eles = new double[1024];
+
+    /**
+     * @param sampler null if only the elevation of the geometries is used
+     */
+    ElevationCursor(RoadCursor source, Sampler sampler, int tagCount) {
+        this.source = source;
+        this.sampler = sampler;
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new RoadRecord(tagCount);
+        }
+    }
+
+    @Override
+    public boolean next(RoadRecord road) {
+        if (next == size) {
+            fill();
+            if (size == 0) {
+                return false;
+            }
+        }
+
+        road.copyFrom(batch[next++]);
+        return true;
+    }
+
+    private void fill() {
+        size = 0;
+        next = 0;
+        while (!exhausted && size < BATCH_SIZE) {
+            if (source.next(batch[size])) {
+                size++;
+            } else {
+                exhausted = true;
+            }
+        }
+
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            RoadRecord road = batch[r];
+            for (int i = 0; i < road.getPointCount(); i++) {
+                if (Double.isNaN(road.eles[i])) {
+                    if (count == lats.length) {
+                        lats = Arrays.copyOf(lats, count * 2);
+                        lons = Arrays.copyOf(lons, count * 2);
+                        eles = Arrays.copyOf(eles, count * 2);
+                    }
+                    lats[count] = road.lats[i];
+                    lons[count] = road.lons[i];
+                    eles[count] = Double.NaN;
+                    count++;
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        if (sampler != null) {
+            sampler.sample(lats, lons, eles, count);
+        }
+
+        int point = 0;
+        for (int r = 0; r < size; r++) {
+            RoadRecord road = batch[r];
+            for (int i = 0; i < road.getPointCount(); i++) {
+                if (Double.isNaN(road.eles[i])) {
+                    double ele = eles[point++];
+                    road.eles[i] = Double.isNaN(ele) ? 0 : ele;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+}
@@ -0,0 +1,53 @@
+package com.graphhopper.reader.postgis;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Positions of the columns the reader needs in a feature type. They are
+ * resolved once per type, the rows are then read by index instead of by
+ * name. Columns missing in the type have the position -1 and read as null.
+ */
+final class FeatureBinding {
+
+    final SimpleFeatureType type;
+    final int osmId;
+    final int fclass;
+    final int maxSpeed;
+    final int oneway;
+    final int restriction;
+    final int restrictionTo;
+    final int restrictionVia;
+    /**
+     * Positions of the tags_to_copy columns, in the same order
+     */
+    final int[] tags;
+
+    FeatureBinding(SimpleFeatureType type, String[] tagsToCopy) {
+        this.type = type;
+        this.osmId = type.indexOf("osm_id");
+        this.fclass = type.indexOf("fclass");
+        this.maxSpeed = type.indexOf("maxspeed");
+        this.oneway = type.indexOf("oneway");
+        this.restriction = type.indexOf("restriction");
+        this.restrictionTo = type.indexOf("restriction_to");
+        this.restrictionVia = type.indexOf("restriction_via");
+        this.tags = new int[tagsToCopy.length];
+        for (int i = 0; i < tagsToCopy.length; i++) {
+            tags[i] = type.indexOf(tagsToCopy[i]);
+        }
+    }
+
+    /**
+     * @return the binding if it fits the type of the feature, a new binding
+     * otherwise
+     */
+    static FeatureBinding of(FeatureBinding binding, SimpleFeature feature, String[] tagsToCopy) {
+        SimpleFeatureType type = feature.getFeatureType();
+        return binding != null && binding.type == type ? binding : new FeatureBinding(type, tagsToCopy);
+    }
+
+    static Object get(SimpleFeature feature, int index) {
+        return index < 0 ? null : feature.getAttribute(index);
+    }
+}
@@ -0,0 +1,63 @@
+package com.graphhopper.reader.postgis;
+
+import org.geotools.data.DataStore;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.filter.Filter;
+
+/**
+ * Streams the roads table through GeoTools. Properties left out of the query
+ * read as null.
+ */
+class FeatureRoadCursor implements RoadCursor {
+
+    private final OSMPostgisReader reader;
+    private final DataStore dataStore;
+    private final FeatureIterator<SimpleFeature> roads;
+    private FeatureBinding binding;
+
+    FeatureRoadCursor(OSMPostgisReader reader, String tableName) {
+        this(reader, tableName, null, null);
+    }
+
+    /**
+     * @param filter rows the database should return, null for all rows
+     * @param properties columns the database should return, null for all
+     */
+    FeatureRoadCursor(OSMPostgisReader reader, String tableName, Filter filter, String[] properties) {
+        this.reader = reader;
+        this.dataStore = reader.openPostGisStore();
+        try {
+            this.roads = filter == null && properties == null
+                    ? reader.getFeatureIterator(dataStore, tableName)
+                    : reader.getFeatureIterator(dataStore, tableName, filter == null ? Filter.INCLUDE : filter, properties);
+        } catch (RuntimeException e) {
+            dataStore.dispose();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean next(RoadRecord road) {
+        while (roads.hasNext()) {
+            SimpleFeature feature = roads.next();
+            if (!reader.acceptFeature(feature)) {
+                continue;
+            }
+
+            binding = reader.bind(feature, binding);
+            reader.readRoad(feature, binding, road);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        try {
+            roads.close();
+        } finally {
+            dataStore.dispose();
+        }
+    }
+}
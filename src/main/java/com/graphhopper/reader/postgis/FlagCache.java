@@ -0,0 +1,165 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.IntsRef;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Accept decision and edge flags per combination of the road attributes the
+ * way is built from: fclass, maxspeed, oneway and the tags_to_copy values.
+ * Road networks repeat a few hundred of these combinations, so most roads
+ * skip acceptWay and handleWayTags.
+ * <p>
+ * The key must cover every input of acceptWay and handleWayTags, so the
+ * cache is off by default: a tag parser that reads a value of the way
+ * outside of the key, e.g. a spatial rule parser reading the estimated
+ * center, would give every road of a combination the flags of the first one,
+ * and nothing shows it. Only enable it for encoding managers made of the
+ * GraphHopper encoders alone.
+ * <p>
+ * Ferries are not cached, their speed depends on the length of the edge.
+ * The cache is bounded: once it is full new combinations are computed but no
+ * longer stored. It is safe for the worker threads of the pipeline, the
+ * cached flags must not be modified.
+ */
+final class FlagCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlagCache.class);
+
+    /**
+     * Flags of a road no encoder accepts
+     */
+    static final Entry REJECTED = new Entry(null);
+
+    static final class Entry {
+
+        /**
+         * null if no encoder accepts the road
+         */
+        final IntsRef flags;
+
+        Entry(IntsRef flags) {
+            this.flags = flags;
+        }
+    }
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    FlagCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return a cache of the given size or null if the size is not positive
+     * or one of the encoders is not part of GraphHopper. Such encoders may
+     * read values that differ per way, e.g. the estimated center.
+     */
+    static FlagCache create(int maxSize, List<FlagEncoder> encoders) {
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        for (FlagEncoder encoder : encoders) {
+            if (!encoder.getClass().getName().startsWith("com.graphhopper.routing.util.")) {
+                LOGGER.info("Flag cache is disabled for the custom encoder " + encoder.getClass().getName());
+                return null;
+            }
+        }
+        return new FlagCache(maxSize);
+    }
+
+    /**
+     * @return the cached entry of the combination of the road or null
+     */
+    Entry get(RoadRecord road) {
+        Entry entry = entries.get(new Key(road));
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the flags of the combination of the road, copying the key values
+     */
+    void put(RoadRecord road, Entry entry) {
+        if (entries.size() < maxSize) {
+            entries.putIfAbsent(new Key(road).copy(), entry);
+        }
+    }
+
+    void logStats() {
+        LOGGER.info("Flag cache: " + nf(hits.sum()) + " hits, " + nf(misses.sum()) + " misses, "
+                + nf(entries.size()) + " combinations");
+    }
+
+    /**
+     * Refers to the values of the record, so the record must not change while
+     * the key is looked up
+     */
+    private static final class Key {
+
+        private final String fclass;
+        private final String maxSpeed;
+        private final String oneway;
+        private final String[] tags;
+        private final int hash;
+
+        Key(RoadRecord road) {
+            this(road.fclass, road.maxSpeed, road.oneway, road.tags);
+        }
+
+        private Key(String fclass, String maxSpeed, String oneway, String[] tags) {
+            this.fclass = fclass;
+            this.maxSpeed = maxSpeed;
+            this.oneway = oneway;
+            this.tags = tags;
+            int h = hashCode(fclass);
+            h = 31 * h + hashCode(maxSpeed);
+            h = 31 * h + hashCode(oneway);
+            this.hash = 31 * h + Arrays.hashCode(tags);
+        }
+
+        Key copy() {
+            return new Key(fclass, maxSpeed, oneway, tags.clone());
+        }
+
+        private static int hashCode(String value) {
+            return value == null ? 0 : value.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && equals(fclass, other.fclass)
+                    && equals(maxSpeed, other.maxSpeed)
+                    && equals(oneway, other.oneway)
+                    && Arrays.equals(tags, other.tags);
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
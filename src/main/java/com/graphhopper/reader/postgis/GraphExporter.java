@@ -0,0 +1,298 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.routing.ev.BooleanEncodedValue;
+import com.graphhopper.routing.ev.DecimalEncodedValue;
+import com.graphhopper.routing.util.AllEdgesIterator;
+import com.graphhopper.routing.util.FlagEncoder;
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.IntsRef;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PointList;
+import com.graphhopper.util.StopWatch;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import org.geotools.data.DataStore;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Writes the edges and the tower nodes of a graph to PostGIS tables, e.g. to
+ * check the graph against the roads.
+ * <p>
+ * The rows are streamed with COPY FROM STDIN in the binary format, the
+ * geometries as EWKB, so the server neither parses text nor runs a statement
+ * per row. The rows go to a new table &lt;table&gt;_load, its primary key and
+ * spatial index are created after the COPY. Only then the old table is
+ * dropped and the new one renamed, in the same transaction: readers see the
+ * old rows during the export and wait only for the swap at its end.
+ * <p>
+ * The edges table has the columns edge_id, base_node, adj_node, osm_id,
+ * distance, per encoder &lt;encoder&gt;_access, &lt;encoder&gt;_reverse_access,
+ * &lt;encoder&gt;_speed and &lt;encoder&gt;_reverse_speed, and geom with the
+ * tower and pillar nodes. The nodes table has node_id and geom.
+ */
+final class GraphExporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphExporter.class);
+
+    private static final int SRID = 4326;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] COPY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_Z = 0x80000000;
+    private static final int WKB_SRID = 0x20000000;
+    private static final String LOAD_SUFFIX = "_load";
+
+    private final Map<String, String> postgisParams;
+    private final Graph graph;
+    private final List<FlagEncoder> encoders;
+    /**
+     * Null if the graph has no OSM ids
+     */
+    private final OsmIdStore osmIdStore;
+    private final boolean is3D;
+
+    GraphExporter(Map<String, String> postgisParams, Graph graph, List<FlagEncoder> encoders, OsmIdStore osmIdStore) {
+        this.postgisParams = postgisParams;
+        this.graph = graph;
+        this.encoders = encoders;
+        this.osmIdStore = osmIdStore;
+        this.is3D = graph.getNodeAccess().is3D();
+    }
+
+    /**
+     * @param nodesTable empty to export only the edges
+     * @return the number of rows written
+     */
+    long export(String edgesTable, String nodesTable) {
+        long rows = 0;
+        DataStore dataStore = PostgisReader.openPostGisStore(postgisParams);
+        try {
+            Connection connection = PostgisReader.getJdbcConnection(dataStore);
+            try {
+                connection.setAutoCommit(false);
+                rows += exportEdges(connection, edgesTable);
+                if (!nodesTable.isEmpty()) {
+                    rows += exportNodes(connection, nodesTable);
+                }
+                // the old tables are locked from here to the commit
+                swapTable(connection, edgesTable);
+                if (!nodesTable.isEmpty()) {
+                    swapTable(connection, nodesTable);
+                }
+                connection.commit();
+            } catch (SQLException | IOException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+                connection.close();
+            }
+        } catch (SQLException | IOException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
+        }
+        return rows;
+    }
+
+    private long exportEdges(Connection connection, String table) throws SQLException, IOException {
+        StringBuilder columns = new StringBuilder("edge_id int4, base_node int4, adj_node int4, osm_id int8, distance float8");
+        StringBuilder names = new StringBuilder("edge_id, base_node, adj_node, osm_id, distance");
+        for (FlagEncoder encoder : encoders) {
+            String access = Utils.quoteIdentifier(encoder + "_access");
+            String reverseAccess = Utils.quoteIdentifier(encoder + "_reverse_access");
+            String speed = Utils.quoteIdentifier(encoder + "_speed");
+            String reverseSpeed = Utils.quoteIdentifier(encoder + "_reverse_speed");
+            columns.append(", ").append(access).append(" bool, ").append(reverseAccess).append(" bool, ")
+                    .append(speed).append(" float8, ").append(reverseSpeed).append(" float8");
+            names.append(", ").append(access).append(", ").append(reverseAccess)
+                    .append(", ").append(speed).append(", ").append(reverseSpeed);
+        }
+        columns.append(", geom geometry(").append(is3D ? "LineStringZ" : "LineString").append(", ").append(SRID).append(")");
+        names.append(", geom");
+
+        StopWatch sw = new StopWatch().start();
+        createTable(connection, table, columns.toString());
+        short fieldCount = (short) (6 + encoders.size() * 4);
+        long rows = 0;
+        try (DataOutputStream out = openCopy(connection, qualify(table + LOAD_SUFFIX), names.toString())) {
+            AllEdgesIterator edge = graph.getAllEdges();
+            while (edge.next()) {
+                out.writeShort(fieldCount);
+                writeInt(out, edge.getEdge());
+                writeInt(out, edge.getBaseNode());
+                writeInt(out, edge.getAdjNode());
+                long osmId = osmIdStore == null ? -1 : osmIdStore.getOsmId(edge.getEdge());
+                if (osmId < 0) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(8);
+                    out.writeLong(osmId);
+                }
+                writeDouble(out, edge.getDistance());
+
+                IntsRef flags = edge.getFlags();
+                for (FlagEncoder encoder : encoders) {
+                    BooleanEncodedValue accessEnc = encoder.getAccessEnc();
+                    DecimalEncodedValue speedEnc = encoder.getAverageSpeedEnc();
+                    writeBool(out, accessEnc.getBool(false, flags));
+                    writeBool(out, accessEnc.getBool(true, flags));
+                    writeDouble(out, speedEnc.getDecimal(false, flags));
+                    writeDouble(out, speedEnc.getDecimal(true, flags));
+                }
+
+                writeLineString(out, edge.fetchWayGeometry(FetchMode.ALL));
+                rows++;
+            }
+            out.writeShort(-1);
+        }
+        finishTable(connection, table, "edge_id");
+        log(qualify(table), rows, sw.stop());
+        return rows;
+    }
+
+    private long exportNodes(Connection connection, String table) throws SQLException, IOException {
+        StopWatch sw = new StopWatch().start();
+        createTable(connection, table, "node_id int4, geom geometry("
+                + (is3D ? "PointZ" : "Point") + ", " + SRID + ")");
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        int nodes = graph.getNodes();
+        try (DataOutputStream out = openCopy(connection, qualify(table + LOAD_SUFFIX), "node_id, geom")) {
+            // node 0 is not used by the reader
+            for (int node = OSMPostgisReader.FIRST_NODE_ID; node < nodes; node++) {
+                out.writeShort(2);
+                writeInt(out, node);
+                out.writeInt(1 + 4 + 4 + 8 * (is3D ? 3 : 2));
+                writeWkbHeader(out, WKB_POINT);
+                out.writeDouble(nodeAccess.getLon(node));
+                out.writeDouble(nodeAccess.getLat(node));
+                if (is3D) {
+                    out.writeDouble(nodeAccess.getEle(node));
+                }
+            }
+            out.writeShort(-1);
+        }
+        finishTable(connection, table, "node_id");
+        long rows = Math.max(0, nodes - OSMPostgisReader.FIRST_NODE_ID);
+        log(qualify(table), rows, sw.stop());
+        return rows;
+    }
+
+    private String qualify(String table) {
+        return PostgisReader.getQualifiedName(postgisParams, table);
+    }
+
+    /**
+     * Creates the load table of the table, a load table left by a failed
+     * export is dropped
+     */
+    private void createTable(Connection connection, String table, String columns) throws SQLException {
+        String load = qualify(table + LOAD_SUFFIX);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + load);
+            statement.execute("CREATE TABLE " + load + " (" + columns + ")");
+        }
+    }
+
+    /**
+     * Indexes the load table under the names of the load table, they are
+     * renamed with it
+     */
+    private void finishTable(Connection connection, String table, String key) throws SQLException {
+        String load = table + LOAD_SUFFIX;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE " + qualify(load) + " ADD CONSTRAINT "
+                    + Utils.quoteIdentifier(load + "_pkey") + " PRIMARY KEY (" + key + ")");
+            statement.execute("CREATE INDEX " + Utils.quoteIdentifier(load + "_geom_idx")
+                    + " ON " + qualify(load) + " USING gist (geom)");
+        }
+    }
+
+    /**
+     * Replaces the table by its load table. The indexes get the names
+     * PostgreSQL gives them by default, as in the tables of older exports.
+     */
+    private void swapTable(Connection connection, String table) throws SQLException {
+        String load = table + LOAD_SUFFIX;
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + qualify(table));
+            statement.execute("ALTER TABLE " + qualify(load) + " RENAME TO " + Utils.quoteIdentifier(table));
+            statement.execute("ALTER INDEX " + qualify(load + "_pkey") + " RENAME TO "
+                    + Utils.quoteIdentifier(table + "_pkey"));
+            statement.execute("ALTER INDEX " + qualify(load + "_geom_idx") + " RENAME TO "
+                    + Utils.quoteIdentifier(table + "_geom_idx"));
+        }
+    }
+
+    /**
+     * Starts the COPY and writes the header of the binary format, closing the
+     * stream ends the COPY
+     */
+    private static DataOutputStream openCopy(Connection connection, String table, String columns)
+            throws SQLException, IOException {
+        PGCopyOutputStream copy = new PGCopyOutputStream(connection.unwrap(PGConnection.class),
+                "COPY " + table + " (" + columns + ") FROM STDIN (FORMAT binary)", BUFFER_SIZE);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(copy, BUFFER_SIZE));
+        out.write(COPY_SIGNATURE);
+        // flags and length of the header extension
+        out.writeInt(0);
+        out.writeInt(0);
+        return out;
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(4);
+        out.writeInt(value);
+    }
+
+    private static void writeDouble(DataOutputStream out, double value) throws IOException {
+        out.writeInt(8);
+        out.writeDouble(value);
+    }
+
+    private static void writeBool(DataOutputStream out, boolean value) throws IOException {
+        out.writeInt(1);
+        out.writeByte(value ? 1 : 0);
+    }
+
+    private void writeLineString(DataOutputStream out, PointList points) throws IOException {
+        int size = points.size();
+        out.writeInt(1 + 4 + 4 + 4 + size * 8 * (is3D ? 3 : 2));
+        writeWkbHeader(out, WKB_LINESTRING);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(points.getLon(i));
+            out.writeDouble(points.getLat(i));
+            if (is3D) {
+                out.writeDouble(points.getEle(i));
+            }
+        }
+    }
+
+    /**
+     * Big endian EWKB with the SRID
+     */
+    private void writeWkbHeader(DataOutputStream out, int type) throws IOException {
+        out.writeByte(0);
+        out.writeInt(type | WKB_SRID | (is3D ? WKB_Z : 0));
+        out.writeInt(SRID);
+    }
+
+    private static void log(String table, long rows, StopWatch sw) {
+        float seconds = sw.getSeconds();
+        LOGGER.info("Exported " + nf(rows) + " rows to " + table + " in " + seconds + "s"
+                + (seconds > 0 ? ", " + nf((long) (rows / seconds)) + " rows/s" : ""));
+    }
+}
@@ -4,17 +4,54 @@ import com.graphhopper.GraphHopper;
 import com.graphhopper.GraphHopperConfig;
 import com.graphhopper.reader.DataReader;
 import com.graphhopper.reader.osm.GraphHopperOSM;
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.Directory;
+import com.graphhopper.storage.GHDirectory;
 import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.StorableProperties;
+import com.graphhopper.storage.index.LocationIndex;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.StopWatch;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class GraphHopperPostgis extends GraphHopperOSM {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphHopperPostgis.class);
+
     private final HashSet<OSMPostgisReader.EdgeAddedListener> edgeAddedListeners = new HashSet<>();
+    private final List<OSMPostgisReader.EdgeBatchListener> edgeBatchListeners = new ArrayList<>();
+
+    private final List<ImportMetrics.Listener> metricsListeners = new ArrayList<>();
+
+    private ImportMetrics importMetrics;
     
     private final Map<String, String> postgisParams = new HashMap<>();
 
+    private OsmIdStore osmIdStore;
+    private TagStore tagStore;
+
+    private boolean updateOnLoad;
+    private boolean updatePending;
+    /**
+     * off, rebuild or update: what to do on load if the source changed
+     */
+    private String sourceCheck;
+    private String roadsTable;
+    private String exportEdgesTable;
+    private String exportNodesTable;
+    /**
+     * Set when importOrLoad imported the graph instead of loading it
+     */
+    private boolean imported;
+
     @Override
     public GraphHopper init(GraphHopperConfig ghConfig) {
 
@@ -26,21 +63,416 @@ public class GraphHopperPostgis extends GraphHopperOSM {
         postgisParams.put("user", ghConfig.getString("db.user", ""));
         postgisParams.put("passwd", ghConfig.getString("db.passwd", ""));
         postgisParams.put("tags_to_copy", ghConfig.getString("db.tags_to_copy", ""));
+        postgisParams.put("single_scan", ghConfig.getString("db.single_scan", "false"));
+        postgisParams.put("spool_dir", ghConfig.getString("db.spool_dir", ""));
+        postgisParams.put("read_partitions", ghConfig.getString("db.read_partitions", "1"));
+        postgisParams.put("read_partition_tables", ghConfig.getString("db.read_partition_tables", ""));
+        postgisParams.put("restrictions_table", ghConfig.getString("db.restrictions_table", ""));
+        postgisParams.put("junctions", ghConfig.getString("db.junctions", "client"));
+        postgisParams.put("junctions_run_size", ghConfig.getString("db.junctions_run_size", "16000000"));
+        postgisParams.put("reader", ghConfig.getString("db.reader", "geotools"));
+        postgisParams.put("pipeline", ghConfig.getString("db.pipeline", "false"));
+        postgisParams.put("coordinate_index", ghConfig.getString("db.coordinate_index", "heap"));
+        postgisParams.put("coordinate_index_size", ghConfig.getString("db.coordinate_index_size", "1000000"));
+        postgisParams.put("update_column", ghConfig.getString("db.update_column", ""));
+        postgisParams.put("changelog_table", ghConfig.getString("db.changelog_table", ""));
+        postgisParams.put("flag_cache_size", ghConfig.getString("db.flag_cache_size", "0"));
+        postgisParams.put("elevation", ghConfig.getString("db.elevation", "none"));
+        postgisParams.put("elevation_raster", ghConfig.getString("db.elevation_raster", ""));
+        postgisParams.put("elevation_cache_size", ghConfig.getString("db.elevation_cache_size", "1000000"));
+        postgisParams.put("simplify", ghConfig.getString("db.simplify", "client"));
+        postgisParams.put("bbox", ghConfig.getString("db.bbox", ""));
+        postgisParams.put("polygon", ghConfig.getString("db.polygon", ""));
+        postgisParams.put("regions_table", ghConfig.getString("db.regions_table", ""));
+        postgisParams.put("region_column", ghConfig.getString("db.region_column", "name"));
+        postgisParams.put("region", ghConfig.getString("db.region", ""));
+        postgisParams.put("checkpoint", ghConfig.getString("db.checkpoint", "false"));
+        postgisParams.put("tag_store", ghConfig.getString("db.tag_store", "false"));
+        postgisParams.put("edge_listener_batch_size", ghConfig.getString("db.edge_listener_batch_size", "4096"));
+        postgisParams.put("edge_listener_queue_size", ghConfig.getString("db.edge_listener_queue_size", "16"));
+        updateOnLoad = ghConfig.getBool("db.update_on_load", false);
+        sourceCheck = ghConfig.getString("db.source_check", "off").trim().toLowerCase(Locale.ROOT);
+        if (!sourceCheck.equals("off") && !sourceCheck.equals("rebuild") && !sourceCheck.equals("update")) {
+            throw new IllegalArgumentException("db.source_check must be off, rebuild or update: " + sourceCheck);
+        }
+        roadsTable = new File(ghConfig.getString("datareader.file", "")).getName();
+        exportEdgesTable = ghConfig.getString("db.export_edges_table", "").trim();
+        exportNodesTable = ghConfig.getString("db.export_nodes_table", "").trim();
+        if (exportEdgesTable.isEmpty() && !exportNodesTable.isEmpty()) {
+            throw new IllegalArgumentException("db.export_nodes_table needs db.export_edges_table");
+        }
+
+        super.init(ghConfig);
+
+        // a 3D graph is needed for the elevation of the roads, even without an
+        // elevation provider
+        if (!"none".equalsIgnoreCase(postgisParams.get("elevation"))) {
+            setElevation(true);
+        }
+
+        if (updateOnLoad && (getCHPreparationHandler().isEnabled() || getLMPreparationHandler().isEnabled())) {
+            throw new IllegalArgumentException("db.update_on_load cannot be used with CH or LM profiles, "
+                    + "their preparations would not match the updated graph");
+        }
+        return this;
+    }
+
+    /**
+     * Builds one graph per region listed in db.regions in a single run. Each
+     * graph goes to the sub directory of graph.location named after its
+     * region, and each import reads only the roads of its region of
+     * db.regions_table. Graphs that already exist are loaded.
+     */
+    public static void importRegions(GraphHopperConfig ghConfig) {
+        String location = ghConfig.getString("graph.location", "");
+        for (String region : ghConfig.getString("db.regions", "").split(",")) {
+            region = region.trim();
+            if (region.isEmpty()) {
+                continue;
+            }
+
+            GraphHopperConfig regionConfig = new GraphHopperConfig(ghConfig);
+            regionConfig.putObject("db.region", region);
+            regionConfig.putObject("graph.location", new File(location, region).getPath());
 
-        return super.init(ghConfig);
+            LOGGER.info("Importing region " + region);
+            GraphHopperPostgis hopper = new GraphHopperPostgis();
+            try {
+                hopper.init(regionConfig);
+                hopper.importOrLoad();
+            } finally {
+                hopper.close();
+            }
+        }
     }
 
     @Override
     protected DataReader createReader(GraphHopperStorage ghStorage) {
+        OSMPostgisReader reader = createPostgisReader(ghStorage);
+        closeOsmIdStore();
+        osmIdStore = reader.getOsmIdStore();
+        tagStore = reader.getTagStore();
+        imported = true;
+        return initDataReader(reader);
+    }
+
+    /**
+     * With db.export_edges_table a new import is written back to PostGIS
+     */
+    @Override
+    public GraphHopper importOrLoad() {
+        imported = false;
+        super.importOrLoad();
+        if (imported && !exportEdgesTable.isEmpty()) {
+            exportGraph(exportEdgesTable, exportNodesTable);
+        }
+        return this;
+    }
+
+    /**
+     * Writes the edges and the tower nodes of the imported or loaded graph to
+     * PostGIS tables of db.schema, which are replaced. Edges get their nodes,
+     * OSM id, distance, access and speed of every encoder in both directions
+     * and the geometry, nodes their position. Runs with COPY in the binary
+     * format, millions of rows a minute.
+     *
+     * @param nodesTable empty to export only the edges
+     * @return the number of rows written
+     */
+    public long exportGraph(String edgesTable, String nodesTable) {
+        GraphHopperStorage ghStorage = getGraphHopperStorage();
+        if (ghStorage == null) {
+            throw new IllegalStateException("No graph imported or loaded");
+        }
+        if (osmIdStore == null) {
+            LOGGER.warn("No OSM ids stored with the graph, osm_id is exported as NULL");
+        }
+        return new GraphExporter(postgisParams, ghStorage, getEncodingManager().fetchEdgeEncoders(), osmIdStore)
+                .export(edgesTable, nodesTable);
+    }
+
+    @Override
+    public boolean load(String graphHopperFolder) {
+        closeOsmIdStore();
+        File folder = new File(graphHopperFolder);
+        if (ImportCheckpoint.exists(folder)) {
+            // the files of an interrupted import are incomplete, the import resumes instead
+            LOGGER.info("Found the checkpoint of an interrupted import in " + graphHopperFolder);
+            File properties = new File(folder, "properties");
+            if (properties.exists() && !properties.delete()) {
+                throw new IllegalStateException("Cannot delete " + properties + " of the interrupted import");
+            }
+            // without the properties super.load finds no graph, it only creates the storage the import
+            // resumes in
+            updatePending = false;
+            super.load(graphHopperFolder);
+            return false;
+        }
+
+        updatePending = updateOnLoad;
+        if (!sourceCheck.equals("off")) {
+            SourceFingerprint.Change change = checkSource(graphHopperFolder);
+            if (change == SourceFingerprint.Change.DATA && canUpdate() && sourceCheck.equals("update")) {
+                LOGGER.info("The roads changed since the import, updating the graph");
+                updatePending = true;
+            } else if (change != SourceFingerprint.Change.NONE) {
+                LOGGER.info("The " + (change == SourceFingerprint.Change.DATA ? "roads" : "import settings")
+                        + " changed since the import, rebuilding the graph in " + graphHopperFolder);
+                // super.load finds no graph in the empty folder, but creates the storage of the import
+                Helper.removeDir(folder);
+                updatePending = false;
+            }
+        }
+
+        try {
+            if (!super.load(graphHopperFolder)) {
+                return false;
+            }
+        } finally {
+            updatePending = false;
+        }
+
+        if (osmIdStore == null) {
+            loadOsmIdStore();
+        }
+        if (osmIdStore == null) {
+            LOGGER.warn("No OSM ids stored in " + graphHopperFolder + ", reimport the graph to use them");
+        }
+        if (tagStore == null && Boolean.parseBoolean(postgisParams.get("tag_store"))) {
+            loadTagStore();
+        }
+        return true;
+    }
+
+    /**
+     * Compares the fingerprint stored with the graph in the folder with the
+     * database, without loading the graph. If the database cannot be reached
+     * the graph is loaded as it is.
+     */
+    private SourceFingerprint.Change checkSource(String graphHopperFolder) {
+        StorableProperties properties = new StorableProperties(new GHDirectory(graphHopperFolder, DAType.RAM_STORE));
+        try {
+            if (!properties.loadExisting()) {
+                // no graph, it is imported anyway
+                return SourceFingerprint.Change.NONE;
+            }
+            return computeFingerprint().compareTo(SourceFingerprint.load(properties));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Cannot check the source of the graph in " + graphHopperFolder + ", loading it", e);
+            return SourceFingerprint.Change.NONE;
+        } finally {
+            properties.close();
+        }
+    }
+
+    /**
+     * @return true if the roads or the import settings changed since the
+     * loaded graph was imported or updated, e.g. to skip a scheduled rebuild
+     */
+    public boolean isSourceChanged() {
+        SourceFingerprint stored = SourceFingerprint.load(getGraphHopperStorage().getProperties());
+        return computeFingerprint().compareTo(stored) != SourceFingerprint.Change.NONE;
+    }
+
+    private SourceFingerprint computeFingerprint() {
+        // the same rows as the reader counts, see OSMPostgisReader.getSqlFilter
+        SpatialFilter filter = SpatialFilter.create(postgisParams, roadsTable);
+        return SourceFingerprint.compute(postgisParams, roadsTable, getEncodingManager(),
+                filter == null ? null : filter.getSql());
+    }
+
+    private boolean canUpdate() {
+        return (!postgisParams.get("update_column").isEmpty() || !postgisParams.get("changelog_table").isEmpty())
+                && !getCHPreparationHandler().isEnabled() && !getLMPreparationHandler().isEnabled();
+    }
+
+    private void loadTagStore() {
+        TagStore store = new TagStore(getGraphHopperStorage().getDirectory());
+        if (store.loadExisting()) {
+            tagStore = store;
+        } else {
+            LOGGER.warn("No tag store in " + getGraphHopperLocation() + ", reimport the graph to use it");
+        }
+    }
+
+    private void loadOsmIdStore() {
+        OsmIdStore store = new OsmIdStore(getGraphHopperStorage().getDirectory());
+        if (store.loadExisting()) {
+            osmIdStore = store;
+        }
+    }
+
+    /**
+     * With db.update_on_load the changes made in PostGIS since the last import
+     * are applied here, while a graph is loaded: the graph is complete but the
+     * location index is not opened yet, so it can be rebuilt for the new edges.
+     */
+    @Override
+    protected LocationIndex createLocationIndex(Directory dir) {
+        if (updatePending) {
+            updatePending = false;
+            if (updateGraph() > 0) {
+                // the stored index does not know the new edges
+                dir.remove(dir.find("location_index"));
+            }
+        }
+        return super.createLocationIndex(dir);
+    }
+
+    /**
+     * Reimports the roads changed since the last import or update into the
+     * loaded graph.
+     *
+     * @return the number of reimported roads
+     */
+    private int updateGraph() {
+        GraphHopperStorage ghStorage = getGraphHopperStorage();
+        OSMPostgisReader reader = createUpdateReader();
+
+        StopWatch sw = new StopWatch().start();
+        int updated = reader.updateGraph();
+        ghStorage.flush();
+        LOGGER.info("Updated " + updated + " roads in " + sw.stop().getSeconds() + "s, nodes: "
+                + ghStorage.getNodes() + ", edges: " + ghStorage.getEdges());
+        return updated;
+    }
+
+    /**
+     * Reads the current attributes of the given roads, e.g. maxspeed, oneway
+     * or the tags_to_copy columns, and overwrites the flags of their edges in
+     * the loaded graph. The geometry is not read again, use db.update_on_load
+     * for geometry changes. Can be called while the graph serves requests,
+     * a request running at the same time sees the old or the new flags.
+     *
+     * @return the number of edges whose flags were written
+     */
+    public synchronized int refreshAttributes(long... osmIds) {
+        if (getCHPreparationHandler().isEnabled() || getLMPreparationHandler().isEnabled()) {
+            throw new IllegalStateException("Cannot refresh attributes with CH or LM profiles, "
+                    + "their preparations would not match the new flags");
+        }
+
+        StopWatch sw = new StopWatch().start();
+        int refreshed = createUpdateReader().refreshAttributes(osmIds);
+        getGraphHopperStorage().flush();
+        LOGGER.info("Refreshed " + refreshed + " edges of " + osmIds.length + " roads in "
+                + sw.stop().getSeconds() + "s");
+        return refreshed;
+    }
+
+    /**
+     * Reader working on the loaded graph and its OSM ids
+     */
+    private OSMPostgisReader createUpdateReader() {
+        if (osmIdStore == null) {
+            loadOsmIdStore();
+        }
+        if (osmIdStore == null) {
+            throw new IllegalStateException("No OSM ids stored with the graph, reimport it to enable updates");
+        }
+        // an update on load runs before load() opens the tag store, the new edges need their tags
+        if (tagStore == null && Boolean.parseBoolean(postgisParams.get("tag_store"))) {
+            loadTagStore();
+        }
+
+        OSMPostgisReader reader = createPostgisReader(getGraphHopperStorage());
+        initDataReader(reader);
+        reader.setOsmIdStore(osmIdStore);
+        reader.setTagStore(tagStore);
+        return reader;
+    }
+
+    @Override
+    public void close() {
+        closeOsmIdStore();
+        super.close();
+    }
+
+    private void closeOsmIdStore() {
+        if (osmIdStore != null) {
+            osmIdStore.close();
+            osmIdStore = null;
+        }
+        if (tagStore != null) {
+            tagStore.close();
+            tagStore = null;
+        }
+    }
+
+    /**
+     * @return OSM ids of the edges, null if the graph was neither imported nor
+     * loaded
+     */
+    public OsmIdStore getOsmIdStore() {
+        return osmIdStore;
+    }
+
+    /**
+     * @return the OSM id of the road the edge was created from, -1 if unknown
+     */
+    public long getOsmIdOfEdge(int edgeId) {
+        return osmIdStore == null ? -1 : osmIdStore.getOsmId(edgeId);
+    }
+
+    /**
+     * @return the tags_to_copy values of the edges, null without db.tag_store
+     * or if the graph was neither imported nor loaded
+     */
+    public TagStore getTagStore() {
+        return tagStore;
+    }
+
+    /**
+     * @return the value of a tags_to_copy column for the road of the edge,
+     * e.g. its name, null if unknown
+     */
+    public String getTagOfEdge(int edgeId, String tag) {
+        return tagStore == null ? null : tagStore.getTag(edgeId, tag);
+    }
+
+    private OSMPostgisReader createPostgisReader(GraphHopperStorage ghStorage) {
         OSMPostgisReader reader = new OSMPostgisReader(ghStorage, postgisParams);
         for (OSMPostgisReader.EdgeAddedListener l : edgeAddedListeners) {
             reader.addListener(l);
         }
-        return initDataReader(reader);
+        for (OSMPostgisReader.EdgeBatchListener l : edgeBatchListeners) {
+            reader.addListener(l);
+        }
+        for (ImportMetrics.Listener l : metricsListeners) {
+            reader.addMetricsListener(l);
+        }
+        importMetrics = reader.getMetrics();
+        return reader;
     }
 
     public void addListener(OSMPostgisReader.EdgeAddedListener l) {
         edgeAddedListeners.add(l);
     }
 
+    /**
+     * The listener gets the edges in batches on a thread of its own, the
+     * import does not wait for it unless db.edge_listener_queue_size batches
+     * are pending.
+     */
+    public void addListener(OSMPostgisReader.EdgeBatchListener l) {
+        edgeBatchListeners.add(l);
+    }
+
+    /**
+     * The listener is called after every phase of the following imports and
+     * updates.
+     */
+    public void addMetricsListener(ImportMetrics.Listener l) {
+        metricsListeners.add(l);
+    }
+
+    /**
+     * @return metrics of the last import, update or attribute refresh of this
+     * instance, null if there was none. The metrics of an import are also
+     * written to {@value ImportMetrics#REPORT_FILE} in the graph directory.
+     */
+    public ImportMetrics getImportMetrics() {
+        return importMetrics;
+    }
+
 }
@@ -0,0 +1,410 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.GHRequest;
+import com.graphhopper.GHResponse;
+import com.graphhopper.GraphHopper;
+import com.graphhopper.GraphHopperConfig;
+import com.graphhopper.config.Profile;
+import com.graphhopper.storage.GraphHopperStorage;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.util.Helper;
+import com.graphhopper.util.StopWatch;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves a graph imported from PostGIS and replaces it by a fresh import
+ * without downtime.
+ * <p>
+ * Every import goes to a new sub directory of graph.location, the file
+ * {@value #CURRENT_FILE} names the directory that is served. A refresh builds
+ * the new graph on a background thread while the old one keeps serving, loads
+ * it, validates it and warms it up with a few routes, and only then swaps it
+ * in. Requests run through {@link #execute}, so a request that started on the
+ * old graph finishes on it: the old graph is closed and its directory deleted
+ * once the last of these requests returned.
+ * <p>
+ * The build uses memory-mapped storage and coordinate index unless
+ * db.refresh_build_mmap is false, so the heap of the process mostly holds the
+ * served graph. A refresh is skipped if less than db.refresh_min_free_heap MB
+ * of heap are free when it starts.
+ */
+public class GraphHopperPostgisManager implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GraphHopperPostgisManager.class);
+
+    /**
+     * Name of the file in graph.location holding the name of the served
+     * directory
+     */
+    public static final String CURRENT_FILE = "current";
+
+    private final GraphHopperConfig ghConfig;
+    private final Supplier<? extends GraphHopperPostgis> factory;
+    private final File location;
+    private final boolean buildMmap;
+    private final long minFreeHeapMB;
+    private final double minEdgeRatio;
+    private final int warmupRoutes;
+    private final AtomicReference<Handle> current = new AtomicReference<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "postgis-graph-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public GraphHopperPostgisManager(GraphHopperConfig ghConfig) {
+        this(ghConfig, GraphHopperPostgis::new);
+    }
+
+    /**
+     * @param factory creates the instances for the imports and the served
+     * graphs, e.g. to register listeners. They are initialized by the manager.
+     */
+    public GraphHopperPostgisManager(GraphHopperConfig ghConfig, Supplier<? extends GraphHopperPostgis> factory) {
+        this.ghConfig = ghConfig;
+        this.factory = factory;
+        this.location = new File(ghConfig.getString("graph.location", ""));
+        this.buildMmap = ghConfig.getBool("db.refresh_build_mmap", true);
+        this.minFreeHeapMB = ghConfig.getInt("db.refresh_min_free_heap", 0);
+        this.minEdgeRatio = ghConfig.getDouble("db.refresh_min_edge_ratio", 0.9);
+        this.warmupRoutes = ghConfig.getInt("db.refresh_warmup_routes", 20);
+    }
+
+    /**
+     * Loads the served graph, or imports it if there is none yet. Blocks until
+     * the graph can be used.
+     */
+    public synchronized void start() {
+        if (current.get() != null) {
+            throw new IllegalStateException("Already started");
+        }
+
+        String name = readCurrent();
+        if (name != null && new File(location, name).isDirectory()) {
+            LOGGER.info("Loading the served graph " + name);
+            current.set(new Handle(open(name), name));
+            return;
+        }
+
+        if (!refreshNow()) {
+            throw new IllegalStateException("The imported graph did not pass the validation");
+        }
+    }
+
+    /**
+     * Runs a request on the served graph. The graph stays open until the
+     * request returns, even if a refresh swaps it meanwhile.
+     */
+    public <T> T execute(Function<GraphHopper, T> request) {
+        Handle handle = acquire();
+        try {
+            return request.apply(handle.hopper);
+        } finally {
+            handle.release();
+        }
+    }
+
+    public GHResponse route(GHRequest request) {
+        return execute(hopper -> hopper.route(request));
+    }
+
+    /**
+     * Starts a refresh on the background thread, refreshes requested while
+     * one is running are run after it.
+     *
+     * @return completes with true if the new graph is served, false if the
+     * refresh was skipped because the source did not change or too little
+     * heap is free, or if the new graph did not pass the validation, and
+     * exceptionally if the import failed. The old graph is served in all but
+     * the first case.
+     */
+    public CompletableFuture<Boolean> refresh() {
+        return CompletableFuture.supplyAsync(() -> {
+            long freeMB = getFreeHeapMB();
+            if (freeMB < minFreeHeapMB) {
+                LOGGER.warn("Refresh skipped, " + freeMB + "MB of heap free, db.refresh_min_free_heap is "
+                        + minFreeHeapMB + "MB");
+                return false;
+            }
+            if (!isSourceChanged()) {
+                LOGGER.info("Refresh skipped, the roads and the import settings did not change");
+                return false;
+            }
+            return refreshNow();
+        }, refresher);
+    }
+
+    private boolean isSourceChanged() {
+        Handle served = current.get();
+        if (served == null || !served.retain()) {
+            return true;
+        }
+
+        try {
+            return served.hopper.isSourceChanged();
+        } finally {
+            served.release();
+        }
+    }
+
+    private synchronized boolean refreshNow() {
+        String name = "graph-" + System.currentTimeMillis();
+        File dir = new File(location, name);
+        StopWatch sw = new StopWatch().start();
+        LOGGER.info("Importing a new graph into " + dir);
+
+        GraphHopperPostgis candidate = null;
+        try {
+            GraphHopperPostgis builder = factory.get();
+            try {
+                builder.init(createConfig(dir, buildMmap));
+                builder.importOrLoad();
+            } finally {
+                builder.close();
+            }
+
+            candidate = open(name);
+            if (!validate(candidate)) {
+                candidate.close();
+                candidate = null;
+                Helper.removeDir(dir);
+                return false;
+            }
+        } catch (RuntimeException e) {
+            if (candidate != null) {
+                candidate.close();
+            }
+            Helper.removeDir(dir);
+            throw e;
+        }
+
+        writeCurrent(name);
+        Handle old = current.getAndSet(new Handle(candidate, name));
+        if (old != null) {
+            old.retire();
+        }
+        LOGGER.info("Serving the graph " + name + ", refreshed in " + sw.stop().getSeconds() + "s");
+        return true;
+    }
+
+    /**
+     * Loads the graph of the directory with the configuration of the served
+     * graphs. A served graph is never imported, rebuilt or updated in place:
+     * the source check and the update on load are off, the refresh builds a
+     * new graph instead.
+     *
+     * @throws IllegalStateException if the directory holds no complete graph
+     */
+    private GraphHopperPostgis open(String name) {
+        File dir = new File(location, name);
+        GraphHopperConfig config = createConfig(dir, false);
+        config.putObject("db.source_check", "off");
+        config.putObject("db.update_on_load", false);
+        GraphHopperPostgis hopper = factory.get();
+        try {
+            hopper.init(config);
+            if (!hopper.load(dir.getPath())) {
+                throw new IllegalStateException("No graph found in " + dir);
+            }
+            return hopper;
+        } catch (RuntimeException e) {
+            hopper.close();
+            throw e;
+        }
+    }
+
+    private GraphHopperConfig createConfig(File dir, boolean mmap) {
+        GraphHopperConfig config = new GraphHopperConfig(ghConfig);
+        config.putObject("graph.location", dir.getPath());
+        if (mmap) {
+            config.putObject("graph.dataaccess", "MMAP");
+            config.putObject("db.coordinate_index", "mmap");
+        }
+        return config;
+    }
+
+    /**
+     * The new graph must not be empty, must have at least
+     * db.refresh_min_edge_ratio of the edges of the served graph, and the
+     * warm-up routes must not fail. Routes that find no path are fine, the
+     * points are random.
+     */
+    private boolean validate(GraphHopperPostgis candidate) {
+        GraphHopperStorage storage = candidate.getGraphHopperStorage();
+        int nodes = storage.getNodes();
+        int edges = storage.getEdges();
+        if (nodes == 0 || edges == 0) {
+            LOGGER.warn("The new graph is empty");
+            return false;
+        }
+
+        Handle served = current.get();
+        if (served != null && served.retain()) {
+            try {
+                int servedEdges = served.hopper.getGraphHopperStorage().getEdges();
+                if (edges < servedEdges * minEdgeRatio) {
+                    LOGGER.warn("The new graph has " + edges + " edges, the served one " + servedEdges
+                            + ", db.refresh_min_edge_ratio is " + minEdgeRatio);
+                    return false;
+                }
+            } finally {
+                served.release();
+            }
+        }
+
+        List<Profile> profiles = candidate.getProfiles();
+        if (profiles.isEmpty()) {
+            return true;
+        }
+
+        NodeAccess nodeAccess = storage.getNodeAccess();
+        Random random = new Random(nodes);
+        int found = 0;
+        for (int i = 0; i < warmupRoutes; i++) {
+            int from = random.nextInt(nodes);
+            int to = random.nextInt(nodes);
+            GHRequest request = new GHRequest(nodeAccess.getLat(from), nodeAccess.getLon(from),
+                    nodeAccess.getLat(to), nodeAccess.getLon(to))
+                    .setProfile(profiles.get(i % profiles.size()).getName());
+            if (!candidate.route(request).hasErrors()) {
+                found++;
+            }
+        }
+        LOGGER.info("Warm-up: " + found + " of " + warmupRoutes + " routes found");
+        return true;
+    }
+
+    private Handle acquire() {
+        while (true) {
+            Handle handle = current.get();
+            if (handle == null) {
+                throw new IllegalStateException("No graph is served");
+            }
+            if (handle.retain()) {
+                return handle;
+            }
+            // swapped and closed meanwhile, the next read sees the new graph
+        }
+    }
+
+    private String readCurrent() {
+        File file = new File(location, CURRENT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * A restart loads the graph named in the file, it is replaced atomically
+     */
+    private void writeCurrent(String name) {
+        File tmp = new File(location, CURRENT_FILE + ".tmp");
+        try {
+            Files.write(tmp.toPath(), name.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(location, CURRENT_FILE).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    private static long getFreeHeapMB() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory()) >> 20;
+    }
+
+    /**
+     * Waits for a running refresh and closes the served graph once its
+     * requests returned
+     */
+    @Override
+    public void close() {
+        refresher.shutdown();
+        try {
+            if (!refresher.awaitTermination(1, TimeUnit.HOURS)) {
+                LOGGER.warn("Graph refresh did not stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Handle handle = current.getAndSet(null);
+        if (handle != null) {
+            handle.release();
+        }
+    }
+
+    /**
+     * A served graph with the number of its users: the manager while the
+     * graph is served, plus the running requests
+     */
+    private final class Handle {
+
+        private final GraphHopperPostgis hopper;
+        private final String name;
+        private final AtomicInteger users = new AtomicInteger(1);
+        private volatile boolean retired;
+
+        Handle(GraphHopperPostgis hopper, String name) {
+            this.hopper = hopper;
+            this.name = name;
+        }
+
+        /**
+         * @return false if the graph is already closed
+         */
+        boolean retain() {
+            while (true) {
+                int count = users.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (users.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (users.decrementAndGet() == 0) {
+                hopper.close();
+                LOGGER.info("Closed the graph " + name);
+                if (retired) {
+                    Helper.removeDir(new File(location, name));
+                }
+            }
+        }
+
+        /**
+         * Called when the graph was replaced, its directory is deleted after
+         * the last request
+         */
+        void retire() {
+            retired = true;
+            release();
+        }
+    }
+}
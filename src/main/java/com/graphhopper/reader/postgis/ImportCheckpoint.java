@@ -0,0 +1,322 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.Graph;
+import com.graphhopper.storage.IntsRef;
+import com.graphhopper.storage.NodeAccess;
+import com.graphhopper.util.EdgeIteratorState;
+import com.graphhopper.util.FetchMode;
+import com.graphhopper.util.PointList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * State of an import saved after each completed phase, so an import that
+ * failed, e.g. on a connection reset in the roads phase, continues with the
+ * next phase instead of starting over.
+ * <p>
+ * The checkpoint is a directory next to the graph files. It holds the tower
+ * nodes after the junctions phase, the edges with their OSM ids after the
+ * roads phase and the complete road spools. The coordinate index is not
+ * stored, it is rebuilt from the nodes. A checkpoint is only used by an
+ * import with the same fingerprint, i.e. the same settings and the same
+ * state of the roads table, otherwise it is deleted.
+ * <p>
+ * Files are written under a temporary name and renamed, and the properties
+ * naming the completed phase are written last, so a crash while saving
+ * leaves the previous checkpoint.
+ */
+final class ImportCheckpoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportCheckpoint.class);
+
+    /**
+     * Name of the checkpoint directory in the graph directory
+     */
+    static final String DIR_NAME = "postgis_checkpoint";
+
+    private static final String PROPERTIES_FILE = "checkpoint.properties";
+    private static final String NODES_FILE = "nodes.bin";
+    private static final String EDGES_FILE = "edges.bin";
+    private static final String PHASE = "phase";
+    private static final String FINGERPRINT = "fingerprint";
+    /**
+     * Phase of a checkpoint made at the start of the import, it only keeps
+     * the road spools
+     */
+    private static final String STARTED = "started";
+
+    private final File dir;
+    private final String fingerprint;
+    private final Properties properties = new Properties();
+
+    ImportCheckpoint(File graphDir, String fingerprint) {
+        this.dir = new File(graphDir, DIR_NAME);
+        // the spools of another layout cannot be replayed
+        this.fingerprint = fingerprint + "|spool=" + RoadSpool.FORMAT_VERSION;
+    }
+
+    /**
+     * @return true if an unfinished import left a checkpoint in the graph
+     * directory
+     */
+    static boolean exists(File graphDir) {
+        return new File(new File(graphDir, DIR_NAME), PROPERTIES_FILE).exists();
+    }
+
+    /**
+     * Reads the checkpoint. A checkpoint of another fingerprint is deleted and
+     * a new one is started.
+     *
+     * @return the last completed phase or null if the import starts over
+     */
+    String open() {
+        File file = new File(dir, PROPERTIES_FILE);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw Utils.asUnchecked(e);
+            }
+
+            if (fingerprint.equals(properties.getProperty(FINGERPRINT))) {
+                String phase = properties.getProperty(PHASE);
+                if (STARTED.equals(phase)) {
+                    LOGGER.info("Resuming the import from the start, complete road spools are reused");
+                    return null;
+                }
+                LOGGER.info("Resuming the import after the phase " + phase);
+                return phase;
+            }
+            LOGGER.info("The checkpoint in " + dir + " was made for another source or settings, starting over");
+        }
+
+        delete();
+        if (!dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create the checkpoint directory " + dir);
+        }
+        properties.clear();
+        commit(STARTED);
+        return null;
+    }
+
+    /**
+     * @return a file of the checkpoint, e.g. for a road spool
+     */
+    File getFile(String name) {
+        return new File(dir, name);
+    }
+
+    String get(String key) {
+        return properties.getProperty(key);
+    }
+
+    void put(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    /**
+     * Marks the phase as completed, after the files of the phase were written
+     */
+    void commit(String phase) {
+        properties.setProperty(PHASE, phase);
+        properties.setProperty(FINGERPRINT, fingerprint);
+        File tmp = new File(dir, PROPERTIES_FILE + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                properties.store(out, "PostGIS import checkpoint");
+            }
+            move(tmp, new File(dir, PROPERTIES_FILE));
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+        LOGGER.info("Checkpoint after the phase " + phase + " saved to " + dir);
+    }
+
+    /**
+     * Deletes the checkpoint, e.g. after the import finished
+     */
+    void delete() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    LOGGER.warn("Cannot delete " + file);
+                }
+            }
+        }
+        if (dir.exists() && !dir.delete()) {
+            LOGGER.warn("Cannot delete the checkpoint directory " + dir);
+        }
+    }
+
+    /**
+     * Saves the position of the nodes from firstNode to the last node of the
+     * graph
+     */
+    void writeNodes(Graph graph, int firstNode) {
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        boolean is3D = nodeAccess.is3D();
+        int nodes = graph.getNodes();
+        write(NODES_FILE, out -> {
+            out.writeInt(firstNode);
+            out.writeInt(nodes);
+            out.writeBoolean(is3D);
+            for (int node = firstNode; node < nodes; node++) {
+                out.writeDouble(nodeAccess.getLat(node));
+                out.writeDouble(nodeAccess.getLon(node));
+                if (is3D) {
+                    out.writeDouble(nodeAccess.getEle(node));
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the saved nodes in the graph
+     */
+    void readNodes(Graph graph) {
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        read(NODES_FILE, in -> {
+            int firstNode = in.readInt();
+            int nodes = in.readInt();
+            boolean is3D = in.readBoolean();
+            if (is3D != nodeAccess.is3D()) {
+                throw new IllegalStateException("The checkpoint was made for a graph with other dimensions");
+            }
+
+            for (int node = firstNode; node < nodes; node++) {
+                double lat = in.readDouble();
+                double lon = in.readDouble();
+                if (is3D) {
+                    nodeAccess.setNode(node, lat, lon, in.readDouble());
+                } else {
+                    nodeAccess.setNode(node, lat, lon);
+                }
+            }
+            LOGGER.info("Restored " + nf(nodes - firstNode) + " nodes");
+        });
+    }
+
+    /**
+     * Saves all edges of the graph in the order of their ids, with their
+     * flags, pillar nodes and OSM ids
+     */
+    void writeEdges(Graph graph, OsmIdStore osmIdStore) {
+        int edges = graph.getEdges();
+        boolean is3D = graph.getNodeAccess().is3D();
+        write(EDGES_FILE, out -> {
+            out.writeInt(edges);
+            for (int id = 0; id < edges; id++) {
+                EdgeIteratorState edge = graph.getEdgeIteratorState(id, Integer.MIN_VALUE);
+                out.writeInt(edge.getBaseNode());
+                out.writeInt(edge.getAdjNode());
+                out.writeDouble(edge.getDistance());
+                out.writeLong(osmIdStore.getOsmId(id));
+
+                IntsRef flags = edge.getFlags();
+                out.writeInt(flags.length);
+                for (int i = 0; i < flags.length; i++) {
+                    out.writeInt(flags.ints[flags.offset + i]);
+                }
+
+                PointList pillars = edge.fetchWayGeometry(FetchMode.PILLAR_ONLY);
+                out.writeInt(pillars.size());
+                for (int i = 0; i < pillars.size(); i++) {
+                    out.writeDouble(pillars.getLat(i));
+                    out.writeDouble(pillars.getLon(i));
+                    if (is3D) {
+                        out.writeDouble(pillars.getEle(i));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the saved edges to the graph, which must not have edges yet, and
+     * their OSM ids to the store
+     */
+    void readEdges(Graph graph, IntsRef flags, OsmIdStore osmIdStore) {
+        boolean is3D = graph.getNodeAccess().is3D();
+        read(EDGES_FILE, in -> {
+            int edges = in.readInt();
+            PointList pillars = new PointList(16, is3D);
+            for (int id = 0; id < edges; id++) {
+                EdgeIteratorState edge = graph.edge(in.readInt(), in.readInt());
+                edge.setDistance(in.readDouble());
+                osmIdStore.setOsmId(edge.getEdge(), in.readLong());
+
+                int length = in.readInt();
+                if (length != flags.length) {
+                    throw new IllegalStateException("The checkpoint was made with other encoders");
+                }
+                for (int i = 0; i < length; i++) {
+                    flags.ints[flags.offset + i] = in.readInt();
+                }
+                edge.setFlags(flags);
+
+                pillars.clear();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    if (is3D) {
+                        pillars.add(in.readDouble(), in.readDouble(), in.readDouble());
+                    } else {
+                        pillars.add(in.readDouble(), in.readDouble());
+                    }
+                }
+                edge.setWayGeometry(pillars);
+            }
+            LOGGER.info("Restored " + nf(edges) + " edges");
+        });
+    }
+
+    private interface Writer {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Reader {
+
+        void read(DataInputStream in) throws IOException;
+    }
+
+    private void write(String name, Writer writer) {
+        File tmp = new File(dir, name + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                writer.write(out);
+            }
+            move(tmp, new File(dir, name));
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    private void read(String name, Reader reader) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(new File(dir, name)), 1 << 16))) {
+            reader.read(in);
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,258 @@
+package com.graphhopper.reader.postgis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timings and counters of the import, one entry per phase.
+ * <p>
+ * For every phase it records the wall time, the rows read, the time spent
+ * waiting for the road cursor, i.e. the database or the spool, the time spent
+ * computing edges and writing them to the graph, the edges rejected by all
+ * encoders, the zero length edges and the peak heap usage. Encoding time is
+ * summed over all threads, so with the pipeline it can exceed the wall time.
+ */
+public class ImportMetrics {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportMetrics.class);
+
+    /**
+     * Name of the JSON report in the graph directory
+     */
+    public static final String REPORT_FILE = "postgis_import_metrics.json";
+
+    public interface Listener {
+
+        void phaseFinished(Phase phase);
+    }
+
+    public static class Phase {
+
+        private final String name;
+        private long wallNanos;
+        private long rows;
+        private long fetchNanos;
+        private final LongAdder encodeNanos = new LongAdder();
+        private long writeNanos;
+        private long edges;
+        private long rejectedEdges;
+        private final LongAdder zeroLengthEdges = new LongAdder();
+        private long peakHeapBytes;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(wallNanos);
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getRowsPerSecond() {
+            return wallNanos == 0 ? 0 : rows * 1_000_000_000L / wallNanos;
+        }
+
+        /**
+         * @return time spent waiting for the next row of the cursor
+         */
+        public long getFetchMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(fetchNanos);
+        }
+
+        /**
+         * @return time spent building ways and running the encoders, summed
+         * over all threads
+         */
+        public long getEncodeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(encodeNanos.sum());
+        }
+
+        /**
+         * @return time spent writing edges to the graph
+         */
+        public long getWriteMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(writeNanos);
+        }
+
+        public long getEdges() {
+            return edges;
+        }
+
+        /**
+         * @return edges no encoder accepted, they are in the graph without
+         * access
+         */
+        public long getRejectedEdges() {
+            return rejectedEdges;
+        }
+
+        public long getZeroLengthEdges() {
+            return zeroLengthEdges.sum();
+        }
+
+        /**
+         * @return the sum of the peak usage of the heap memory pools during
+         * the phase
+         */
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        void addRow(long nanos) {
+            rows++;
+            fetchNanos += nanos;
+        }
+
+        void addFetchNanos(long nanos) {
+            fetchNanos += nanos;
+        }
+
+        void addEncodeNanos(long nanos) {
+            encodeNanos.add(nanos);
+        }
+
+        void addEdge(long writeNanos, boolean rejected) {
+            this.writeNanos += writeNanos;
+            edges++;
+            if (rejected) {
+                rejectedEdges++;
+            }
+        }
+
+        void addZeroLengthEdge() {
+            zeroLengthEdges.increment();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getWallMillis() + "ms, rows: " + rows + " (" + getRowsPerSecond() + "/s)"
+                    + ", fetch: " + getFetchMillis() + "ms, encode: " + getEncodeMillis() + "ms"
+                    + ", write: " + getWriteMillis() + "ms, edges: " + edges + ", rejected: " + rejectedEdges
+                    + ", zero length: " + getZeroLengthEdges() + ", peak heap: " + (peakHeapBytes >> 20) + "MB";
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Phase unrecorded = new Phase("none");
+    private volatile Phase current;
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Runs the task as a phase with the given name
+     */
+    void runPhase(String name, Runnable task) {
+        Phase phase = new Phase(name);
+        resetPeakHeap();
+        current = phase;
+        long start = System.nanoTime();
+        try {
+            task.run();
+        } finally {
+            phase.wallNanos = System.nanoTime() - start;
+            phase.peakHeapBytes = getPeakHeap();
+            current = null;
+            phases.add(phase);
+        }
+
+        LOGGER.info(phase.toString());
+        for (Listener listener : listeners) {
+            listener.phaseFinished(phase);
+        }
+    }
+
+    /**
+     * @return the running phase or a phase that is not recorded, so callers
+     * need no null checks outside of phases
+     */
+    Phase getCurrent() {
+        Phase phase = current;
+        return phase == null ? unrecorded : phase;
+    }
+
+    /**
+     * Counts the rows of the cursor and the time spent waiting for them in
+     * the running phase.
+     */
+    RoadCursor track(final RoadCursor cursor) {
+        final Phase phase = getCurrent();
+        return new RoadCursor() {
+            @Override
+            public boolean next(RoadRecord road) {
+                long start = System.nanoTime();
+                boolean found = cursor.next(road);
+                if (found) {
+                    phase.addRow(System.nanoTime() - start);
+                } else {
+                    phase.addFetchNanos(System.nanoTime() - start);
+                }
+                return found;
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+            }
+        };
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    public long getTotalMillis() {
+        long total = 0;
+        for (Phase phase : phases) {
+            total += phase.getWallMillis();
+        }
+        return total;
+    }
+
+    void writeReport(File file) {
+        try {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, this);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write import metrics to " + file, e);
+        }
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
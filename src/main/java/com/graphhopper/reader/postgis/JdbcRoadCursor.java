@@ -0,0 +1,143 @@
+package com.graphhopper.reader.postgis;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.geotools.data.DataStore;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Streams the roads table with plain JDBC. The geometry is fetched as WKB and
+ * decoded straight into the record, so no GeoTools features and no JTS
+ * geometries are built. The connection settings and the column list are
+ * still taken from the GeoTools data store.
+ * <p>
+ * getFilter() and acceptFeature() do not apply here, getSqlFilter() does.
+ */
+class JdbcRoadCursor implements RoadCursor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JdbcRoadCursor.class);
+
+    private final DataStore dataStore;
+    private final SqlCursor cursor;
+    private final ResultSet rs;
+    private final WkbDecoder decoder = new WkbDecoder();
+    private final int tagCount;
+    private final String tableName;
+    /**
+     * Rows whose geometry is not a (multi) line string
+     */
+    private int skippedGeometries;
+
+    /**
+     * @param condition SQL condition the rows must match in addition to
+     * getSqlFilter(), null for all rows
+     * @param params values of the placeholders in the condition
+     */
+    JdbcRoadCursor(OSMPostgisReader reader, String tableName, String[] tagsToCopy,
+            String condition, Object... params) {
+        this.tagCount = tagsToCopy.length;
+        this.tableName = tableName;
+        this.dataStore = reader.openPostGisStore();
+        try {
+            Set<String> columns = new HashSet<>();
+            SimpleFeatureType schema = dataStore.getSchema(tableName);
+            for (AttributeDescriptor descriptor : schema.getAttributeDescriptors()) {
+                columns.add(descriptor.getLocalName());
+            }
+
+            StringBuilder sql = new StringBuilder("SELECT ");
+            appendColumn(sql, columns, "osm_id");
+            appendColumn(sql, columns, "fclass");
+            appendColumn(sql, columns, "maxspeed");
+            appendColumn(sql, columns, "oneway");
+            appendColumn(sql, columns, "restriction");
+            appendColumn(sql, columns, "restriction_to");
+            appendColumn(sql, columns, "restriction_via");
+            for (String tag : tagsToCopy) {
+                appendColumn(sql, columns, tag);
+            }
+            String geometry = reader.getGeometryColumn(dataStore, tableName);
+            sql.append("ST_AsBinary(").append(reader.getRoadGeometrySql(geometry)).append(")");
+            sql.append(" FROM ").append(reader.getQualifiedName(tableName));
+
+            List<String> conditions = new ArrayList<>();
+            String sqlFilter = reader.getSqlFilter();
+            if (sqlFilter != null) {
+                conditions.add("(" + sqlFilter + ")");
+            }
+            if (condition != null) {
+                conditions.add("(" + condition + ")");
+            }
+            if (!conditions.isEmpty()) {
+                sql.append(" WHERE ").append(String.join(" AND ", conditions));
+            }
+
+            this.cursor = new SqlCursor(reader.getConnection(dataStore), sql.toString(), params);
+            this.rs = cursor.getResultSet();
+        } catch (IOException | SQLException | RuntimeException e) {
+            dataStore.dispose();
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Columns missing in the table are read as null, like missing attributes
+     * of a GeoTools feature.
+     */
+    private static void appendColumn(StringBuilder sql, Set<String> columns, String column) {
+        sql.append(columns.contains(column) ? Utils.quoteIdentifier(column) : "NULL").append(", ");
+    }
+
+    @Override
+    public boolean next(RoadRecord road) {
+        try {
+            if (!rs.next()) {
+                return false;
+            }
+
+            road.clear();
+            road.osmId = rs.getLong(1);
+            road.fclass = rs.getString(2);
+            road.maxSpeed = rs.getString(3);
+            road.oneway = rs.getString(4);
+            road.restriction = rs.getString(5);
+            road.restrictionTo = rs.getLong(6);
+            road.restrictionVia = rs.getLong(7);
+            for (int i = 0; i < tagCount; i++) {
+                road.tags[i] = rs.getString(8 + i);
+            }
+
+            byte[] wkb = rs.getBytes(8 + tagCount);
+            if (wkb != null && !decoder.decode(wkb, road)) {
+                // the row is kept without points, like in the GeoTools reader
+                skippedGeometries++;
+                LOGGER.debug("Road " + road.osmId + " is not a line string, its geometry is skipped");
+            }
+            return true;
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (skippedGeometries > 0) {
+            LOGGER.warn(nf(skippedGeometries) + " roads of " + tableName
+                    + " are not line strings, their geometry was skipped");
+        }
+        try {
+            cursor.close();
+        } finally {
+            dataStore.dispose();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.graphhopper.reader.postgis;
+
+import com.carrotsearch.hppc.LongHashSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Finds the tower nodes by sorting instead of a map of all points, so only a
+ * fixed buffer and the towers need memory.
+ * <p>
+ * Every point of a line part is added once, an end point twice, a point
+ * repeated within the part only on its first occurrence. In the sorted
+ * sequence a key that occurs at least twice is therefore a tower: either it
+ * ends a part or it is shared by several parts, as with the coordinate map
+ * of the other junction modes. Full buffers are
+ * sorted and written to a run file, where a key is kept at most twice. The
+ * runs are then merged into a file of the sorted tower keys.
+ */
+final class JunctionSorter implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JunctionSorter.class);
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final File tmpDir;
+    private final long[] buffer;
+    private int size;
+    private final List<File> runs = new ArrayList<>();
+    private final LongHashSet partKeys = new LongHashSet();
+    private File towers;
+    private long towerCount;
+
+    /**
+     * @param runSize number of points sorted in memory, 8 bytes each
+     * @param tmpDir directory of the run files, null for the default
+     */
+    JunctionSorter(int runSize, File tmpDir) {
+        this.tmpDir = tmpDir;
+        this.buffer = new long[Math.max(1024, runSize)];
+    }
+
+    /**
+     * Adds the points of all parts of the road
+     */
+    void addRoad(RoadRecord road) {
+        for (int part = 0; part < road.getPartCount(); part++) {
+            int start = road.getPartStart(part);
+            int end = road.getPartEnd(part);
+            partKeys.clear();
+            for (int i = start; i < end; i++) {
+                long key = CoordinateIndex.key(road.lats[i], road.lons[i]);
+                if (partKeys.add(key)) {
+                    add(key, i == start || i == end - 1);
+                }
+            }
+        }
+    }
+
+    void add(long key, boolean endpoint) {
+        put(key);
+        if (endpoint) {
+            put(key);
+        }
+    }
+
+    private void put(long key) {
+        if (size == buffer.length) {
+            spill();
+        }
+        buffer[size++] = key;
+    }
+
+    private void spill() {
+        Arrays.sort(buffer, 0, size);
+        File run = createTempFile("junctions");
+        try (DataOutputStream out = open(run)) {
+            int i = 0;
+            while (i < size) {
+                long key = buffer[i];
+                int end = i + 1;
+                while (end < size && buffer[end] == key) {
+                    end++;
+                }
+                // a third occurrence changes nothing
+                out.writeLong(key);
+                if (end - i > 1) {
+                    out.writeLong(key);
+                }
+                i = end;
+            }
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+        runs.add(run);
+        size = 0;
+        LOGGER.info("Sorted run " + runs.size() + " written, " + nf(run.length()) + " bytes");
+    }
+
+    /**
+     * Merges the runs into the sorted tower keys
+     *
+     * @return the number of towers
+     */
+    long sort() {
+        if (size > 0 || runs.isEmpty()) {
+            spill();
+        }
+
+        towers = createTempFile("towers");
+        PriorityQueue<Run> queue = new PriorityQueue<>(runs.size(), (a, b) -> Long.compare(a.key, b.key));
+        try (DataOutputStream out = open(towers)) {
+            for (File file : runs) {
+                Run run = new Run(file);
+                if (run.next()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+
+            boolean first = true;
+            long key = 0;
+            int count = 0;
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                if (first || run.key != key) {
+                    if (count > 1) {
+                        writeTower(out, key);
+                    }
+                    first = false;
+                    key = run.key;
+                    count = 0;
+                }
+                count++;
+
+                if (run.next()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            if (count > 1) {
+                writeTower(out, key);
+            }
+        } catch (IOException e) {
+            for (Run run : queue) {
+                run.close();
+            }
+            throw Utils.asUnchecked(e);
+        }
+
+        deleteRuns();
+        LOGGER.info("Merged the junction runs, " + nf(towerCount) + " towers");
+        return towerCount;
+    }
+
+    private void writeTower(DataOutputStream out, long key) throws IOException {
+        out.writeLong(key);
+        towerCount++;
+    }
+
+    /**
+     * Passes the tower keys in ascending order
+     */
+    void forEachTower(LongConsumer consumer) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(towers), BUFFER_SIZE))) {
+            for (long i = 0; i < towerCount; i++) {
+                consumer.accept(in.readLong());
+            }
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        deleteRuns();
+        if (towers != null) {
+            delete(towers);
+            towers = null;
+        }
+    }
+
+    private void deleteRuns() {
+        for (File run : runs) {
+            delete(run);
+        }
+        runs.clear();
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot delete " + file);
+        }
+    }
+
+    private File createTempFile(String prefix) {
+        try {
+            File file = File.createTempFile(prefix, ".sort", tmpDir);
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    private static DataOutputStream open(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /**
+     * Reads a sorted run, the current key is in {@link #key}
+     */
+    private static final class Run {
+
+        private final DataInputStream in;
+        long key;
+
+        Run(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        boolean next() throws IOException {
+            try {
+                key = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close a junction run", e);
+            }
+        }
+    }
+}
@@ -1,28 +1,41 @@
 package com.graphhopper.reader.postgis;
 
-import com.graphhopper.coll.GHObjectIntHashMap;
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.LongHashSet;
 import com.graphhopper.reader.DataReader;
 import com.graphhopper.reader.OSMTurnRelation;
 import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.reader.dem.EdgeSampling;
 import com.graphhopper.reader.dem.ElevationProvider;
 import com.graphhopper.routing.util.EncodingManager;
 import com.graphhopper.routing.util.parsers.TurnCostParser;
+import com.graphhopper.storage.Directory;
 import com.graphhopper.storage.GraphHopperStorage;
 import com.graphhopper.storage.IntsRef;
+import com.graphhopper.storage.NodeAccess;
 import com.graphhopper.util.DistanceCalc;
+import com.graphhopper.util.DouglasPeucker;
 import com.graphhopper.util.EdgeIteratorState;
 import com.graphhopper.util.Helper;
 import com.graphhopper.util.PointList;
 import com.graphhopper.util.shapes.GHPoint;
 import com.vividsolutions.jts.geom.Coordinate;
 import org.geotools.data.DataStore;
-import org.geotools.feature.FeatureIterator;
+import org.geotools.data.FeatureSource;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import static com.graphhopper.util.DistanceCalcEarth.DIST_EARTH;
+import static com.graphhopper.util.DistanceCalcEarth.METERS_PER_DEGREE;
 import static com.graphhopper.util.Helper.nf;
 import static com.graphhopper.util.Helper.toLowerCase;
 
@@ -40,25 +53,159 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
 
     private static final int COORD_STATE_UNKNOWN = 0;
     private static final int COORD_STATE_PILLAR = -2;
-    private static final int FIRST_NODE_ID = 1;
+    static final int FIRST_NODE_ID = 1;
 
-    private GHObjectIntHashMap<Coordinate> coordState = new GHObjectIntHashMap<>(10_000_000, 0.7f);
+    /**
+     * Свойство графа, в котором хранится метка последнего импорта или
+     * обновления: максимум update_column или changed_at на его начало
+     */
+    static final String WATERMARK_PROPERTY = "postgis.update_watermark";
+    /**
+     * Метка для пустого источника изменений, при обновлении берутся все строки
+     */
+    private static final String NO_WATERMARK = "*";
+    private static final int UPDATE_BATCH_SIZE = 1000;
+    /**
+     * Дороги ближе этого расстояния (в градусах) считаются соседними: их
+     * точки могут совпасть после округления до 6 знаков
+     */
+    private static final double NEIGHBOUR_DISTANCE = 1e-6;
+    private static final String[] RESTRICTION_PROPERTIES = {"osm_id", "restriction", "restriction_to"};
+    private static final String[] VIA_RESTRICTION_PROPERTIES = {"osm_id", "restriction", "restriction_to",
+        "restriction_via"};
+    /**
+     * Сколько запретов копится перед записью в граф
+     */
+    private static final int RESTRICTION_BATCH_SIZE = 10_000;
+    /**
+     * Значения oneway в формате Geofabrik и OSM и соответствующие им значения
+     * OSM
+     */
+    private static final Map<String, String> ONEWAY_VALUES = new HashMap<>();
+
+    static {
+        // в обоих направлениях
+        putOneway("no", "b", "no");
+        // односторонее: "Обратно направлению оцифровки"
+        putOneway("-1", "t", "-1");
+        // односторонее: "Вперёд в направлении оцифровки"
+        putOneway("yes", "f", "yes");
+    }
+
+    private static void putOneway(String value, String... keys) {
+        for (String key : keys) {
+            ONEWAY_VALUES.put(key, value);
+            ONEWAY_VALUES.put(key.toUpperCase(Locale.ROOT), value);
+        }
+    }
+
+    private CoordinateIndex coordState;
     private final HashSet<EdgeAddedListener> edgeAddedListeners = new HashSet<>();
+    private final List<EdgeBatchListener> edgeBatchListeners = new ArrayList<>();
+    /**
+     * По одному на асинхронного слушателя, создаются с первым ребром
+     */
+    private List<EdgeBatchDispatcher> edgeDispatchers;
+    private final int edgeListenerBatchSize;
+    private final int edgeListenerQueueSize;
 
     private int nextNodeId = FIRST_NODE_ID;
+    /**
+     * В 3D графе узлы, которым уже задана высота. Узлы до firstNodeWithoutHeight
+     * получили высоту при прошлом импорте
+     */
+    private BitSet towersWithHeight;
+    private int firstNodeWithoutHeight = FIRST_NODE_ID;
 
     private final String[] tagsToCopy;
     private File roadsFile;
+    private final boolean singleScan;
+    private final File spoolDir;
+    private final List<RoadSpool> roadSpools = new ArrayList<>();
+    private final int readPartitions;
+    private final List<String> partitionTables = new ArrayList<>();
+    private int workerThreads = 1;
+    private final String restrictionsTable;
+    private final boolean offHeapIndex;
+    private final boolean junctionsInDatabase;
+    /**
+     * Узлы вычисляются внешней сортировкой точек, а не в индексе координат
+     */
+    private final boolean junctionsExternal;
+    private final int junctionsRunSize;
+    private final boolean jdbcReader;
+    private final boolean pipeline;
+    private final long coordIndexSize;
     private final DistanceCalc distCalc = DIST_EARTH;
-    protected long zeroCounter = 0;
+    protected final AtomicLong zeroCounter = new AtomicLong();
+    private int edgeCounter;
+    /**
+     * Столбы записываемого ребра, используется только потоком записи
+     */
+    private final PointList pillarNodes;
+    /**
+     * Все точки записываемого ребра вместе с узлами, для упрощения
+     */
+    private final PointList edgePoints;
+    private final DouglasPeucker simplifyAlgo = new DouglasPeucker();
+    private double wayPointMaxDistance;
+    private double longEdgeSamplingDistance = Double.MAX_VALUE;
+    /**
+     * Упрощать геометрию в PostGIS, а не при записи рёбер
+     */
+    private final boolean simplifyInDatabase;
+    private ElevationProvider eleProvider = ElevationProvider.NOOP;
+    /**
+     * Источник высоты для точек 3D графа без высоты в геометрии: none,
+     * geometry или raster
+     */
+    private final String elevation;
+    private final String elevationRaster;
+    private final int elevationCacheSize;
 
     private final IntsRef tempRelFlags;
+    /**
+     * null, если кэш флагов выключен
+     */
+    private final FlagCache flagCache;
+
+    private OsmIdStore osmIdStore;
+    /**
+     * Значения tags_to_copy рёбер, null если db.tag_store выключен
+     */
+    private TagStore tagStore;
+
+    private final boolean checkpointEnabled;
+    /**
+     * Отпечаток источника, запрашивается из БД один раз до чтения дорог
+     */
+    private SourceFingerprint sourceFingerprint;
+    /**
+     * Контрольная точка полного импорта, null если она выключена
+     */
+    private ImportCheckpoint checkpoint;
 
-    private final HashMap<Long, WayNodes> wayNodesMap = new HashMap<>();
-    private final HashMap<Integer, Long> edgeOsmIdMap = new HashMap<>();
+    private final GraphHopperStorage ghStorage;
+    private final String updateColumn;
+    private final String changelogTable;
+    /**
+     * Область импорта, читается из БД при первом запросе
+     */
+    private SpatialFilter spatialFilter;
+    private boolean spatialFilterLoaded;
+    /**
+     * osm_id дорог, которые перечитываются при обновлении, null при полном
+     * импорте
+     */
+    private LongHashSet updateIds;
+    /**
+     * Источник дорог вместо БД, например синтетические дороги в бенчмарках
+     */
+    private Supplier<RoadCursor> roadSource;
 
     public OSMPostgisReader(GraphHopperStorage ghStorage, Map<String, String> postgisParams) {
         super(ghStorage, postgisParams);
+        this.ghStorage = ghStorage;
 
         String tmpTagsToCopy = postgisParams.get("tags_to_copy");
         if (tmpTagsToCopy == null || tmpTagsToCopy.isEmpty()) {
@@ -66,6 +213,78 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
         } else {
             this.tagsToCopy = tmpTagsToCopy.split(",");
         }
+
+        this.singleScan = Boolean.parseBoolean(postgisParams.get("single_scan"));
+        String tmpSpoolDir = postgisParams.get("spool_dir");
+        this.spoolDir = tmpSpoolDir == null || tmpSpoolDir.isEmpty() ? null : new File(tmpSpoolDir);
+
+        String tmpReadPartitions = postgisParams.get("read_partitions");
+        this.readPartitions = tmpReadPartitions == null || tmpReadPartitions.isEmpty() ? 1 : Integer.parseInt(tmpReadPartitions);
+        String tmpPartitionTables = postgisParams.get("read_partition_tables");
+        if (tmpPartitionTables != null) {
+            for (String table : tmpPartitionTables.split(",")) {
+                if (!table.trim().isEmpty()) {
+                    partitionTables.add(table.trim());
+                }
+            }
+        }
+
+        String tmpRestrictionsTable = postgisParams.get("restrictions_table");
+        this.restrictionsTable = tmpRestrictionsTable == null ? "" : tmpRestrictionsTable.trim();
+
+        this.junctionsInDatabase = "database".equalsIgnoreCase(postgisParams.get("junctions"));
+        this.junctionsExternal = "external".equalsIgnoreCase(postgisParams.get("junctions"));
+        String tmpRunSize = postgisParams.get("junctions_run_size");
+        this.junctionsRunSize = tmpRunSize == null || tmpRunSize.isEmpty() ? 16_000_000 : Integer.parseInt(tmpRunSize);
+        this.jdbcReader = "jdbc".equalsIgnoreCase(postgisParams.get("reader"));
+        this.pipeline = Boolean.parseBoolean(postgisParams.get("pipeline"));
+
+        this.offHeapIndex = "mmap".equalsIgnoreCase(postgisParams.get("coordinate_index"));
+        String tmpIndexSize = postgisParams.get("coordinate_index_size");
+        this.coordIndexSize = tmpIndexSize == null || tmpIndexSize.isEmpty() ? 1_000_000 : Long.parseLong(tmpIndexSize);
+        this.osmIdStore = new OsmIdStore(ghStorage.getDirectory());
+        if (Boolean.parseBoolean(postgisParams.get("tag_store")) && tagsToCopy.length > 0) {
+            this.tagStore = new TagStore(ghStorage.getDirectory());
+        }
+
+        String tmpUpdateColumn = postgisParams.get("update_column");
+        this.updateColumn = tmpUpdateColumn == null ? "" : tmpUpdateColumn.trim();
+        String tmpChangelogTable = postgisParams.get("changelog_table");
+        this.changelogTable = tmpChangelogTable == null ? "" : tmpChangelogTable.trim();
+
+
+        String tmpElevation = postgisParams.get("elevation");
+        this.elevation = tmpElevation == null || tmpElevation.isEmpty() ? "none" : tmpElevation.trim();
+        String tmpElevationRaster = postgisParams.get("elevation_raster");
+        this.elevationRaster = tmpElevationRaster == null ? "" : tmpElevationRaster.trim();
+        if ("raster".equalsIgnoreCase(elevation) && elevationRaster.isEmpty()) {
+            throw new IllegalArgumentException("elevation_raster is required for raster elevation");
+        }
+        String tmpElevationCacheSize = postgisParams.get("elevation_cache_size");
+        this.elevationCacheSize = tmpElevationCacheSize == null || tmpElevationCacheSize.isEmpty()
+                ? 1_000_000 : Integer.parseInt(tmpElevationCacheSize);
+        this.pillarNodes = new PointList(16, graph.getNodeAccess().is3D());
+        this.edgePoints = new PointList(16, graph.getNodeAccess().is3D());
+
+        this.simplifyInDatabase = "database".equalsIgnoreCase(postgisParams.get("simplify"));
+        if (simplifyInDatabase && !jdbcReader) {
+            throw new IllegalArgumentException("simplify=database needs reader=jdbc, "
+                    + "all passes must read the same simplified geometries");
+        }
+
+        this.checkpointEnabled = Boolean.parseBoolean(postgisParams.get("checkpoint"));
+        String tmpListenerBatchSize = postgisParams.get("edge_listener_batch_size");
+        this.edgeListenerBatchSize = tmpListenerBatchSize == null || tmpListenerBatchSize.isEmpty()
+                ? 4096 : Integer.parseInt(tmpListenerBatchSize);
+        String tmpListenerQueueSize = postgisParams.get("edge_listener_queue_size");
+        this.edgeListenerQueueSize = tmpListenerQueueSize == null || tmpListenerQueueSize.isEmpty()
+                ? 16 : Integer.parseInt(tmpListenerQueueSize);
+
+        String tmpFlagCacheSize = postgisParams.get("flag_cache_size");
+        this.flagCache = FlagCache.create(
+                tmpFlagCacheSize == null || tmpFlagCacheSize.isEmpty() ? 0 : Integer.parseInt(tmpFlagCacheSize),
+                encodingManager.fetchEdgeEncoders());
+
         tempRelFlags = encodingManager.createRelationFlags();
         if (tempRelFlags.length != 2) {
             throw new IllegalArgumentException("Cannot use relation flags with != 2 integers");
@@ -76,52 +295,72 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
 
     @Override
     void processJunctions() {
-        DataStore dataStore = null;
-        FeatureIterator<SimpleFeature> roads = null;
-        int tmpJunctionCounter = 0;
+        firstNodeWithoutHeight = nextNodeId;
+        towersWithHeight = null;
+        if (hasChangeSource()) {
+            // метка берётся до чтения, изменения во время импорта попадут в следующее обновление
+            ghStorage.getProperties().put(WATERMARK_PROPERTY, queryWatermark());
+        }
+        if (roadSource == null) {
+            getSourceFingerprint().store(ghStorage.getProperties());
+        }
 
-        try {
-            dataStore = openPostGisStore();
-            roads = getFeatureIterator(dataStore, roadsFile.getName());
+        if (junctionsExternal) {
+            processJunctionsExternal();
+        } else if (junctionsInDatabase) {
+            coordState = createCoordinateIndex();
+            processJunctionsInDatabase();
+        } else {
+            coordState = createCoordinateIndex();
+            processJunctionsFromRoads();
+        }
 
-            HashSet<Coordinate> tmpSet = new HashSet<>();
-            while (roads.hasNext()) {
-                SimpleFeature road = roads.next();
+        if (nextNodeId == FIRST_NODE_ID) {
+            throw new IllegalArgumentException("No data found for roads file " + roadsFile);
+        }
 
-                if (!acceptFeature(road)) {
-                    continue;
-                }
+        LOGGER.info("Number of junction points : " + (nextNodeId - FIRST_NODE_ID));
+    }
 
-                for (Coordinate[] points : getCoords(road)) {
+    private void processJunctionsFromRoads() {
+        RoadCursor roads = null;
+        int tmpJunctionCounter = 0;
+
+        try {
+            roads = metrics.track(openRoads());
+
+            RoadRecord road = new RoadRecord(tagsToCopy.length);
+            LongHashSet tmpSet = new LongHashSet();
+            while (roads.next(road)) {
+                for (int part = 0; part < road.getPartCount(); part++) {
+                    int start = road.getPartStart(part);
+                    int end = road.getPartEnd(part);
                     tmpSet.clear();
-                    for (int i = 0; i < points.length; i++) {
-                        Coordinate c = points[i];
-                        c = roundCoordinate(c);
+                    for (int i = start; i < end; i++) {
+                        long key = CoordinateIndex.key(road.lats[i], road.lons[i]);
 
                         // Не добавлять одну и ту же координату дважды для одного ребра - 
                         // происходит с плохой геометрией, 
                         // т.е. дублирующимися координатами, 
                         // или дорогой которая образует круг (например, кольцевая развязка)
-                        if (tmpSet.contains(c)) {
+                        if (!tmpSet.add(key)) {
                             continue;
                         }
 
-                        tmpSet.add(c);
-
                         // Пропустить если это уже узел
-                        int state = coordState.get(c);
+                        int state = coordState.get(key);
                         if (state >= FIRST_NODE_ID) {
                             continue;
                         }
 
-                        if (i == 0 || i == points.length - 1 || state == COORD_STATE_PILLAR) {
+                        if (i == start || i == end - 1 || state == COORD_STATE_PILLAR) {
                             // Превратится в УЗЕЛ если это первая или последняя точка, или появлялась в другом ребре
                             int nodeId = nextNodeId++;
-                            coordState.put(c, nodeId);
-                            saveTowerPosition(nodeId, c);
+                            coordState.put(key, nodeId);
+                            saveTowerPosition(nodeId, road.lats[i], road.lons[i]);
                         } else if (state == COORD_STATE_UNKNOWN) {
                             // Пометить в качество столба, (который затем может быть превращён в узел)
-                            coordState.put(c, COORD_STATE_PILLAR);
+                            coordState.put(key, COORD_STATE_PILLAR);
                         }
 
                         if (++tmpJunctionCounter % 100_000 == 0) {
@@ -135,109 +374,272 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
             if (roads != null) {
                 roads.close();
             }
-            if (dataStore != null) {
-                dataStore.dispose();
+        }
+    }
+
+    /**
+     * Узлы вычисляются сортировкой: точки всех линий пишутся в отсортированные
+     * файлы, при слиянии узлом становится точка, которая является концом
+     * линии или встречается более чем в одной линии. В памяти только буфер
+     * сортировки, а индекс координат создаётся по точному числу узлов и
+     * содержит только их. Номера узлов упорядочены по координатам.
+     */
+    private void processJunctionsExternal() {
+        long towers;
+        try (JunctionSorter sorter = new JunctionSorter(junctionsRunSize, spoolDir)) {
+            RoadCursor roads = metrics.track(openRoads());
+            try {
+                RoadRecord road = new RoadRecord(tagsToCopy.length);
+                while (roads.next(road)) {
+                    // каждая точка учитывается один раз на линию, как в processJunctionsFromRoads
+                    sorter.addRoad(road);
+                }
+            } finally {
+                roads.close();
+            }
+
+            towers = sorter.sort();
+            if (towers > Integer.MAX_VALUE - FIRST_NODE_ID) {
+                throw new IllegalStateException("Too many junctions: " + towers);
             }
+            coordState = createCoordinateIndex(Math.max(towers, 1));
+            sorter.forEachTower(key -> {
+                int nodeId = nextNodeId++;
+                coordState.put(key, nodeId);
+                saveTowerPosition(nodeId, CoordinateIndex.lat(key), CoordinateIndex.lon(key));
+            });
         }
+        LOGGER.info(nf(towers) + " (junctions) " + Helper.getMemInfo());
+    }
 
-        if (nextNodeId == FIRST_NODE_ID) {
-            throw new IllegalArgumentException("No data found for roads file " + roadsFile);
+    /**
+     * Узлы вычисляются в PostGIS: все точки линий округляются, узлом становится
+     * точка, которая является концом линии или встречается более чем в одной
+     * линии. В JVM приходят только узлы, упорядоченные по координатам.
+     * acceptFeature и getFilter здесь не применяются, только getSqlFilter.
+     */
+    private void processJunctionsInDatabase() {
+        String table = roadsFile.getName();
+        int tmpJunctionCounter = 0;
+
+        DataStore dataStore = openPostGisStore();
+        try {
+            String sql = getTowerNodesSql(getQualifiedName(table), getGeometryColumn(dataStore, table));
+            LOGGER.info("Computing junctions in the database: " + sql);
+
+            ImportMetrics.Phase phase = metrics.getCurrent();
+            long start = System.nanoTime();
+            try (SqlCursor nodes = new SqlCursor(getConnection(dataStore), sql)) {
+                ResultSet rs = nodes.getResultSet();
+                while (rs.next()) {
+                    phase.addRow(System.nanoTime() - start);
+                    long key = CoordinateIndex.fixedKey(rs.getLong(1), rs.getLong(2));
+                    int nodeId = nextNodeId++;
+                    coordState.put(key, nodeId);
+                    saveTowerPosition(nodeId, CoordinateIndex.lat(key), CoordinateIndex.lon(key));
+
+                    if (++tmpJunctionCounter % 100_000 == 0) {
+                        LOGGER.info(nf(tmpJunctionCounter) + " (junctions) " + Helper.getMemInfo());
+                    }
+                    start = System.nanoTime();
+                }
+            }
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
         }
+    }
 
-        LOGGER.info("Number of junction points : " + (nextNodeId - FIRST_NODE_ID));
+    private String getTowerNodesSql(String table, String geometry) {
+        String where = getSqlFilter();
+        // координаты округляются так же, как Math.round. Как в
+        // processJunctionsFromRoads, точка учитывается один раз на линию, и
+        // концом линии она считается, только если там её первое вхождение
+        return "SELECT lat, lon FROM ("
+                + " SELECT lat, lon, min(idx) IN (1, max(n)) AS endpoint FROM ("
+                + " SELECT floor(ST_Y(d.geom) * 1e6 + 0.5)::bigint AS lat,"
+                + " floor(ST_X(d.geom) * 1e6 + 0.5)::bigint AS lon,"
+                + " l.part, d.path[1] AS idx, ST_NPoints(l.geom) AS n"
+                + " FROM (SELECT row_number() OVER () AS part, p.geom"
+                + " FROM " + (where == null ? table : "(SELECT * FROM " + table + " WHERE " + where + ")") + " r,"
+                + " LATERAL ST_Dump(" + getRoadGeometrySql("r." + geometry) + ") p) l,"
+                + " LATERAL ST_DumpPoints(l.geom) d"
+                + ") q GROUP BY part, lat, lon"
+                + ") v GROUP BY lat, lon"
+                + " HAVING bool_or(endpoint) OR count(*) > 1"
+                + " ORDER BY lat, lon";
     }
 
     @Override
     void processRoads() {
-        DataStore dataStore = null;
-        FeatureIterator<SimpleFeature> roads = null;
-
-        int tmpEdgeCounter = 0;
+        if (updateIds == null) {
+            osmIdStore.create(nextNodeId);
+            if (tagStore != null) {
+                tagStore.create(tagsToCopy, nextNodeId);
+            }
+        }
 
+        RasterElevation raster = null;
         try {
-            dataStore = openPostGisStore();
-            roads = getFeatureIterator(dataStore, roadsFile.getName());
+            if (graph.getNodeAccess().is3D() && "raster".equalsIgnoreCase(elevation)) {
+                raster = new RasterElevation(this, elevationRaster, elevationCacheSize);
+            }
+            processRoads(raster);
+        } finally {
+            if (raster != null) {
+                raster.close();
+            }
+        }
 
-            while (roads.hasNext()) {
-                SimpleFeature road = roads.next();
+        osmIdStore.buildWayIndex();
+        if (tagStore != null) {
+            LOGGER.info("Tag store: " + nf(tagStore.getValueCount()) + " distinct values of "
+                    + String.join(",", tagsToCopy));
+        }
+        if (flagCache != null) {
+            flagCache.logStats();
+        }
+    }
 
-                if (!acceptFeature(road)) {
-                    continue;
+    private void processRoads(RasterElevation raster) {
+        final ImportMetrics.Phase phase = metrics.getCurrent();
+        RoadCursor roads = metrics.track(withElevation(openRoads(), raster));
+        if (pipeline) {
+            new RoadPipeline<PreparedEdges>(workerThreads, tagsToCopy.length).run(roads, new RoadPipeline.Handler<PreparedEdges>() {
+                @Override
+                public PreparedEdges createBuffer() {
+                    return new PreparedEdges();
                 }
 
-                for (Coordinate[] points : getCoords(road)) {
-                    // Парсим все точки в геометрии, разделяя их на отдельные рёбра
-                    // всякий раз когда находим узел в списке точек
-                    Coordinate startTowerPnt = null;
-                    List<Coordinate> pillars = new ArrayList<>();
-                    for (Coordinate point : points) {
-                        point = roundCoordinate(point);
-                        if (startTowerPnt == null) {
-                            startTowerPnt = point;
-                        } else {
-                            int state = coordState.get(point);
-                            if (state >= FIRST_NODE_ID) {
-                                int fromTowerNodeId = coordState.get(startTowerPnt);
-                                int toTowerNodeId = state;
-
-                                // Получить расстояние и приблизительный центр
-                                GHPoint estmCentre = new GHPoint(
-                                        0.5 * (lat(startTowerPnt) + lat(point)),
-                                        0.5 * (lng(startTowerPnt) + lng(point)));
-                                PointList pillarNodes = new PointList(pillars.size(), false);
-
-                                for (Coordinate pillar : pillars) {
-                                    pillarNodes.add(lat(pillar), lng(pillar));
-                                }
-
-                                double distance = getWayLength(startTowerPnt, pillars, point);
-                                addEdge(fromTowerNodeId, toTowerNodeId, road, distance, estmCentre, pillarNodes);
-                                startTowerPnt = point;
-                                pillars.clear();
-
-                                if (++tmpEdgeCounter % 1_000_000 == 0) {
-                                    LOGGER.info(nf(tmpEdgeCounter) + " (edges) " + Helper.getMemInfo());
-                                }
-                            } else {
-                                pillars.add(point);
-                            }
-                        }
-                    }
+                @Override
+                public void prepare(RoadRecord road, PreparedEdges edges) {
+                    long start = System.nanoTime();
+                    prepareEdges(road, edges);
+                    phase.addEncodeNanos(System.nanoTime() - start);
                 }
 
-            }
-        } finally {
-            if (roads != null) {
+                @Override
+                public void write(PreparedEdges edges) {
+                    writeEdges(edges, phase);
+                }
+            });
+        } else {
+            try {
+                RoadRecord road = new RoadRecord(tagsToCopy.length);
+                PreparedEdges edges = new PreparedEdges();
+                while (roads.next(road)) {
+                    long start = System.nanoTime();
+                    prepareEdges(road, edges);
+                    phase.addEncodeNanos(System.nanoTime() - start);
+                    writeEdges(edges, phase);
+                }
+            } finally {
                 roads.close();
             }
+        }
+    }
+
+    /**
+     * В 3D графе высота берётся из геометрии, а для точек без неё - из
+     * растра PostGIS или из ElevationProvider GraphHopper, иначе 0
+     */
+    private RoadCursor withElevation(RoadCursor roads, RasterElevation raster) {
+        if (!graph.getNodeAccess().is3D()) {
+            return roads;
+        }
+
+        ElevationCursor.Sampler sampler = raster;
+        if (sampler == null && eleProvider != ElevationProvider.NOOP) {
+            sampler = (lats, lons, eles, count) -> {
+                for (int i = 0; i < count; i++) {
+                    eles[i] = eleProvider.getEle(lats[i], lons[i]);
+                }
+            };
+        }
+        return new ElevationCursor(roads, sampler, tagsToCopy.length);
+    }
+
+    /**
+     * Делит дорогу на рёбра и считает для них всё, что не требует записи в
+     * граф. Вызывается из нескольких потоков в режиме pipeline, поэтому
+     * только читает общие структуры.
+     * <p>
+     * Way и флаги считаются один раз на дорогу, все её рёбра их разделяют,
+     * флаги - с центром первого ребра. Исключение - паромы: их скорость
+     * зависит от длины, поэтому флаги считаются для каждого ребра. Центр
+     * каждого ребра ставится в way при записи ребра.
+     */
+    void prepareEdges(RoadRecord road, PreparedEdges edges) {
+        ReaderWay way = null;
+        EncodingManager.AcceptWay acceptWay = null;
+        IntsRef roadFlags = null;
+        for (int part = 0; part < road.getPartCount(); part++) {
+            int start = road.getPartStart(part);
+            int end = road.getPartEnd(part);
+            if (start == end) {
+                continue;
+            }
+
+            // Парсим все точки в геометрии, разделяя их на отдельные рёбра
+            // всякий раз когда находим узел в списке точек,
+            // точки между startTower и i - столбы
+            int startTower = start;
+            for (int i = start + 1; i < end; i++) {
+                int state = coordState.get(CoordinateIndex.key(road.lats[i], road.lons[i]));
+                if (state < FIRST_NODE_ID) {
+                    continue;
+                }
+
+                int fromTowerNodeId = coordState.get(CoordinateIndex.key(road.lats[startTower], road.lons[startTower]));
+                int toTowerNodeId = state;
+                double distance = getWayLength(road, startTower, i);
 
-            if (dataStore != null) {
-                dataStore.dispose();
+                if (way == null) {
+                    way = createWay(road);
+                    // флаги дороги считаются с центром её первого ребра
+                    setEstimatedCenter(way, road.lats[startTower], road.lons[startTower], road.lats[i], road.lons[i]);
+                    acceptWay = new EncodingManager.AcceptWay();
+                    roadFlags = getRoadFlags(road, way, acceptWay);
+                }
+
+                IntsRef edgeFlags = roadFlags;
+                if (acceptWay.isFerry()) {
+                    setEstimatedCenter(way, road.lats[startTower], road.lons[startTower], road.lats[i], road.lons[i]);
+                    way.setTag("estimated_distance", distance);
+                    edgeFlags = getEdgeFlags(way, acceptWay);
+                }
+
+                // столбы - точки между startTower и i, они остаются в road
+                edges.add(fromTowerNodeId, toTowerNodeId, distance, road, startTower, i, way, edgeFlags);
+                startTower = i;
             }
         }
     }
 
     @Override
     void processRestrictions() {
-        if (wayNodesMap.isEmpty()) {
+        if (osmIdStore.getEdgeCount() == 0) {
             LOGGER.info("Список узлов - пустой");
             return;
         }
 
-        DataStore dataStore = null;
-        FeatureIterator<SimpleFeature> roads = null;
+        RoadCursor roads = null;
+        int added = 0;
+        int unsupported = 0;
+        int unresolved = 0;
+        int ambiguous = 0;
+        int viaWays = 0;
 
         try {
-            dataStore = openPostGisStore();
-            roads = getFeatureIterator(dataStore, roadsFile.getName());
-
-            while (roads.hasNext()) {
-                SimpleFeature road = roads.next();
-                if (!acceptFeature(road)) {
-                    continue;
-                }
-
-                String restriction = (String) road.getAttribute("restriction");
+            roads = metrics.track(openRestrictions());
+
+            RoadRecord road = new RoadRecord(tagsToCopy.length);
+            List<OSMTurnRelation> batch = new ArrayList<>(RESTRICTION_BATCH_SIZE);
+            RestrictionIndex index = new RestrictionIndex();
+            IntArrayList viaNodes = new IntArrayList();
+            while (roads.next(road)) {
+                String restriction = road.restriction;
                 if (restriction == null) {
                     continue;
                 }
@@ -246,85 +648,335 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
                         ? OSMTurnRelation.Type.NOT
                         : OSMTurnRelation.Type.getRestrictionType(restriction);
                 if (type == OSMTurnRelation.Type.UNSUPPORTED) {
-                    LOGGER.info("Unsupported: " + restriction);
+                    LOGGER.debug("Unsupported: " + restriction);
+                    unsupported++;
                     continue;
                 }
 
-                Long restrictionFrom = getOSMId(road);
-                Long restrictionTo = (Long) road.getAttribute("restriction_to");
+                long restrictionFrom = road.osmId;
+                long restrictionTo = road.restrictionTo;
                 if (restrictionTo <= 0 || restrictionFrom <= 0) {
                     continue;
                 }
 
-                WayNodes fromWay = wayNodesMap.get(restrictionFrom);
-                WayNodes toWay = wayNodesMap.get(restrictionTo);
-
-                if (toWay == null || fromWay == null) {
+                // При обновлении нужны только запреты, касающиеся перечитанных дорог
+                if (updateIds != null && !updateIds.contains(restrictionFrom) && !updateIds.contains(restrictionTo)) {
                     continue;
                 }
 
-                int nodeId = 0;
+                // запрет через промежуточную дорогу не выражается поворотами на одном узле
+                if (road.restrictionVia > 0) {
+                    viaWays++;
+                    continue;
+                }
 
-                if (fromWay.getToNode() == toWay.getFromNode()) {
-                    nodeId = fromWay.getToNode();
-                } else if (fromWay.getToNode() == toWay.getToNode()) {
-                    nodeId = fromWay.getToNode();
-                } else if (fromWay.getFromNode() == toWay.getFromNode()) {
-                    nodeId = fromWay.getFromNode();
-                } else if (fromWay.getFromNode() == toWay.getToNode()) {
-                    nodeId = fromWay.getFromNode();
+                viaNodes.clear();
+                if (restrictionFrom == restrictionTo) {
+                    // разворот на той же дороге, например no_u_turn: узел не задан, запрет ставится на оба её конца
+                    index.findEndNodes(restrictionFrom, viaNodes);
                 } else {
+                    int nodeId = index.findViaNode(restrictionFrom, restrictionTo);
+                    if (nodeId == RestrictionIndex.AMBIGUOUS) {
+                        ambiguous++;
+                        continue;
+                    }
+                    if (nodeId != RestrictionIndex.NOT_CONNECTED) {
+                        viaNodes.add(nodeId);
+                    }
+                }
+                if (viaNodes.isEmpty()) {
+                    unresolved++;
                     continue;
                 }
 
-                OSMTurnRelation osmTurnRelation = new OSMTurnRelation(restrictionFrom, nodeId, restrictionTo, type);
-                osmTurnRelation.setVehicleTypeRestricted("motorcar");
-
-                LOGGER.info(osmTurnRelation.toString());
-
-                encodingManager.handleTurnRelationTags(osmTurnRelation, this, graph);
-
+                for (int i = 0; i < viaNodes.size(); i++) {
+                    OSMTurnRelation osmTurnRelation = new OSMTurnRelation(restrictionFrom, viaNodes.get(i), restrictionTo, type);
+                    osmTurnRelation.setVehicleTypeRestricted("motorcar");
+                    batch.add(osmTurnRelation);
+                    if (batch.size() == RESTRICTION_BATCH_SIZE) {
+                        added += addTurnRelations(batch);
+                    }
+                }
             }
+            added += addTurnRelations(batch);
         } finally {
             if (roads != null) {
                 roads.close();
             }
+        }
+
+        LOGGER.info("Restrictions: " + nf(added) + " added, " + nf(unsupported) + " unsupported, "
+                + nf(unresolved) + " not matched to the graph, " + nf(ambiguous) + " with several common nodes, "
+                + nf(viaWays) + " via ways skipped");
+    }
+
+    /**
+     * Записывает пачку запретов в порядке узлов, так запись в хранилище
+     * стоимостей поворотов идёт подряд, и очищает её
+     *
+     * @return число записанных запретов
+     */
+    private int addTurnRelations(List<OSMTurnRelation> batch) {
+        batch.sort((a, b) -> Long.compare(a.getViaOsmNodeId(), b.getViaOsmNodeId()));
+        for (OSMTurnRelation osmTurnRelation : batch) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(osmTurnRelation.toString());
+            }
+            encodingManager.handleTurnRelationTags(osmTurnRelation, this, graph);
+        }
+
+        int count = batch.size();
+        batch.clear();
+        return count;
+    }
+
+    /**
+     * Поиск узла запрета по всем рёбрам дорог. Дорога, разбитая на несколько
+     * рёбер, ищется по всем своим рёбрам, а не по последнему.
+     */
+    private final class RestrictionIndex {
+
+        static final int NOT_CONNECTED = -1;
+        static final int AMBIGUOUS = -2;
+
+        private final IntArrayList fromEdges = new IntArrayList();
+        private final IntArrayList toEdges = new IntArrayList();
+        private final IntArrayList fromNodes = new IntArrayList();
+
+        /**
+         * @return узел, общий для рёбер обеих дорог, NOT_CONNECTED если его
+         * нет или дороги нет в графе, AMBIGUOUS если общих узлов несколько
+         */
+        int findViaNode(long fromOsmId, long toOsmId) {
+            fromEdges.clear();
+            toEdges.clear();
+            if (osmIdStore.findEdges(fromOsmId, fromEdges) == 0 || osmIdStore.findEdges(toOsmId, toEdges) == 0) {
+                return NOT_CONNECTED;
+            }
+
+            fromNodes.clear();
+            for (int i = 0; i < fromEdges.size(); i++) {
+                EdgeIteratorState edge = graph.getEdgeIteratorState(fromEdges.get(i), Integer.MIN_VALUE);
+                fromNodes.add(edge.getBaseNode());
+                fromNodes.add(edge.getAdjNode());
+            }
+
+            int via = NOT_CONNECTED;
+            for (int i = 0; i < toEdges.size(); i++) {
+                EdgeIteratorState edge = graph.getEdgeIteratorState(toEdges.get(i), Integer.MIN_VALUE);
+                for (int node : new int[]{edge.getBaseNode(), edge.getAdjNode()}) {
+                    if (node == via || !fromNodes.contains(node)) {
+                        continue;
+                    }
+                    if (via != NOT_CONNECTED) {
+                        return AMBIGUOUS;
+                    }
+                    via = node;
+                }
+            }
+            return via;
+        }
+
+        /**
+         * Концы дороги: узлы, в которых кончается нечётное число её рёбер. У
+         * замкнутой дороги концов нет, берётся конечный узел её последнего
+         * ребра. Ничего не добавляет, если дороги нет в графе.
+         */
+        void findEndNodes(long osmId, IntArrayList endNodes) {
+            fromEdges.clear();
+            if (osmIdStore.findEdges(osmId, fromEdges) == 0) {
+                return;
+            }
 
-            if (dataStore != null) {
-                dataStore.dispose();
+            fromNodes.clear();
+            int lastAdjNode = NOT_CONNECTED;
+            for (int i = 0; i < fromEdges.size(); i++) {
+                EdgeIteratorState edge = graph.getEdgeIteratorState(fromEdges.get(i), Integer.MIN_VALUE);
+                fromNodes.add(edge.getBaseNode());
+                fromNodes.add(edge.getAdjNode());
+                lastAdjNode = edge.getAdjNode();
+            }
+
+            for (int i = 0; i < fromNodes.size(); i++) {
+                int node = fromNodes.get(i);
+                int count = 0;
+                for (int j = 0; j < fromNodes.size(); j++) {
+                    if (fromNodes.get(j) == node) {
+                        count++;
+                    }
+                }
+                if (count % 2 == 1 && !endNodes.contains(node)) {
+                    endNodes.add(node);
+                }
+            }
+            if (endNodes.isEmpty()) {
+                endNodes.add(lastAdjNode);
             }
         }
     }
 
     @Override
     protected void finishReading() {
-        this.coordState.clear();
-        this.coordState = null;
-        LOGGER.info("Finished reading. Zero Counter " + nf(zeroCounter) + " " + Helper.getMemInfo());
+        closeEdgeDispatchers();
+        if (this.coordState != null) {
+            this.coordState.close();
+            this.coordState = null;
+        }
+        closeSpools();
+        osmIdStore.flush();
+        if (tagStore != null) {
+            tagStore.flush();
+        }
+
+        Directory dir = ghStorage.getDirectory();
+        if (dir.getDefaultType().isStoring() && !metrics.getPhases().isEmpty()) {
+            metrics.writeReport(new File(dir.getLocation(), ImportMetrics.REPORT_FILE));
+        }
+        LOGGER.info("Finished reading. Zero Counter " + nf(zeroCounter.get()) + " " + Helper.getMemInfo());
+    }
+
+    @Override
+    void abortReading() {
+        if (edgeDispatchers == null) {
+            return;
+        }
+
+        // потоки слушателей останавливаются без доставки оставшихся рёбер
+        for (EdgeBatchDispatcher dispatcher : edgeDispatchers) {
+            dispatcher.abort();
+        }
+        edgeDispatchers = null;
+    }
+
+    /**
+     * Ждёт, пока асинхронные слушатели получат все рёбра
+     */
+    private void closeEdgeDispatchers() {
+        if (edgeDispatchers == null) {
+            return;
+        }
+
+        List<EdgeBatchDispatcher> dispatchers = edgeDispatchers;
+        edgeDispatchers = null;
+        RuntimeException failure = null;
+        for (EdgeBatchDispatcher dispatcher : dispatchers) {
+            try {
+                dispatcher.close();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Контрольная точка используется только графом, который сохраняется на
+     * диск, и только для дорог из PostGIS. Если импорт прервался после
+     * junctions, восстанавливаются узлы и индекс координат, после roads -
+     * ещё и рёбра с их osm_id.
+     */
+    @Override
+    Set<String> restoreCheckpoint() {
+        Directory dir = ghStorage.getDirectory();
+        if (!checkpointEnabled || !dir.getDefaultType().isStoring() || roadSource != null) {
+            return Collections.emptySet();
+        }
+
+        checkpoint = new ImportCheckpoint(new File(dir.getLocation()), getSourceFingerprint().toString());
+        String phase = checkpoint.open();
+        if (phase == null) {
+            return Collections.emptySet();
+        }
+
+        getSourceFingerprint().store(ghStorage.getProperties());
+        checkpoint.readNodes(graph);
+        nextNodeId = graph.getNodes();
+        String watermark = checkpoint.get(WATERMARK_PROPERTY);
+        if (watermark != null) {
+            ghStorage.getProperties().put(WATERMARK_PROPERTY, watermark);
+        }
+
+        if ("junctions".equals(phase)) {
+            coordState = createNodeIndex();
+            return Collections.singleton("junctions");
+        }
+
+        // для ограничений нужны только рёбра и их osm_id
+        osmIdStore.create(nextNodeId);
+        checkpoint.readEdges(graph, encodingManager.createEdgeFlags(), osmIdStore);
+        osmIdStore.buildWayIndex();
+        // значения тегов записаны в файлы графа при сохранении контрольной точки
+        if (tagStore != null && !tagStore.loadExisting()) {
+            throw new IllegalStateException("The checkpoint has no tag store, delete " + ImportCheckpoint.DIR_NAME);
+        }
+        return new HashSet<>(Arrays.asList("junctions", "roads"));
+    }
+
+    @Override
+    void saveCheckpoint(String phase) {
+        if (checkpoint == null || !"junctions".equals(phase) && !"roads".equals(phase)) {
+            return;
+        }
+
+        String watermark = ghStorage.getProperties().get(WATERMARK_PROPERTY);
+        if (watermark != null && !watermark.isEmpty()) {
+            checkpoint.put(WATERMARK_PROPERTY, watermark);
+        }
+        // в 3D высота узлов известна только после roads, поэтому узлы пишутся оба раза
+        checkpoint.writeNodes(graph, FIRST_NODE_ID);
+        if ("roads".equals(phase)) {
+            checkpoint.writeEdges(graph, osmIdStore);
+            if (tagStore != null) {
+                tagStore.flush();
+            }
+        }
+        checkpoint.commit(phase);
+    }
+
+    @Override
+    void deleteCheckpoint() {
+        if (checkpoint != null) {
+            checkpoint.delete();
+            checkpoint = null;
+        }
+    }
+
+    /**
+     * Отпечаток источника для графа и контрольной точки. Берётся до чтения,
+     * как и метка изменений, так что изменения во время импорта его меняют.
+     */
+    private SourceFingerprint getSourceFingerprint() {
+        if (sourceFingerprint == null) {
+            sourceFingerprint = SourceFingerprint.compute(getPostgisParams(), roadsFile.getName(), encodingManager,
+                    getSqlFilter());
+        }
+        return sourceFingerprint;
     }
 
     /**
      * Рассчёт расстояния по координатам
      *
-     * @param start начальная точка
-     * @param pillars промежуточные точки
-     * @param end конечная точка
+     * @param road дорога
+     * @param from индекс начальной точки
+     * @param to индекс конечной точки, точки между ними - промежуточные
      * @return дистанция
      */
-    protected double getWayLength(Coordinate start, List<Coordinate> pillars, Coordinate end) {
+    protected double getWayLength(RoadRecord road, int from, int to) {
         double distance = 0;
 
-        Coordinate previous = start;
-        for (Coordinate point : pillars) {
-            distance += distCalc.calcDist(lat(previous), lng(previous), lat(point), lng(point));
-            previous = point;
+        for (int i = from; i < to; i++) {
+            distance += distCalc.calcDist(road.lats[i], road.lons[i], road.lats[i + 1], road.lons[i + 1]);
         }
-        distance += distCalc.calcDist(lat(previous), lng(previous), lat(end), lng(end));
 
         if (distance < 0.0001) {
             // As investigation shows often two paths should have crossed via one identical point
             // but end up in two very close points.
-            zeroCounter++;
+            zeroCounter.incrementAndGet();
+            metrics.getCurrent().addZeroLengthEdge();
             distance = 0.0001;
         }
 
@@ -344,21 +996,26 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
 
     @Override
     public DataReader setElevationProvider(ElevationProvider ep) {
+        this.eleProvider = ep == null ? ElevationProvider.NOOP : ep;
         return this;
     }
 
     @Override
     public DataReader setWorkerThreads(int workerThreads) {
+        this.workerThreads = Math.max(1, workerThreads);
         return this;
     }
 
     @Override
     public DataReader setWayPointMaxDistance(double wayPointMaxDistance) {
+        this.wayPointMaxDistance = wayPointMaxDistance;
+        simplifyAlgo.setMaxDistance(wayPointMaxDistance);
         return this;
     }
 
     @Override
     public DataReader setWayPointElevationMaxDistance(double v) {
+        simplifyAlgo.setElevationMaxDistance(v);
         return this;
     }
 
@@ -369,6 +1026,7 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
 
     @Override
     public DataReader setLongEdgeSamplingDistance(double v) {
+        this.longEdgeSamplingDistance = v;
         return this;
     }
 
@@ -384,7 +1042,7 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
 
     @Override
     public long getOsmIdOfInternalEdge(int edgeId) {
-        return edgeOsmIdMap.get(edgeId);
+        return osmIdStore.getOsmId(edgeId);
     }
 
     public static interface EdgeAddedListener {
@@ -392,17 +1050,33 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
         void edgeAdded(ReaderWay way, EdgeIteratorState edge);
     }
 
-    private void addEdge(int fromTower, int toTower, SimpleFeature road, double distance,
-            GHPoint estmCentre, PointList pillarNodes) {
-        EdgeIteratorState edge = graph.edge(fromTower, toTower);
+    /**
+     * Слушатель, который получает рёбра пачками в отдельном потоке, так его
+     * работа, например запись в файл или БД, не задерживает импорт. Все
+     * рёбра доставлены, когда импорт или обновление закончились.
+     */
+    public static interface EdgeBatchListener {
+
+        /**
+         * @return теги дороги, которые копируются в пачку, например highway
+         * (значение fclass) или maxspeed
+         */
+        String[] getTags();
+
+        /**
+         * Вызывается в потоке слушателя, в порядке добавления рёбер. Пачка
+         * переиспользуется после возврата.
+         */
+        void edgesAdded(EdgeBatch batch);
+    }
 
+    /**
+     * Создаёт way с атрибутами дороги. Приблизительный центр задаётся для
+     * каждого ребра, см. setEstimatedCenter.
+     */
+    private ReaderWay createWay(RoadRecord road) {
         // Идентификатор OSM, он никогда не должен быть null
-        long id = getOSMId(road);
-
-        // saving from.to nodes for restrictions and edgeId
-        WayNodes wayNode = new WayNodes(fromTower, toTower);
-        edgeOsmIdMap.put(edge.getEdge(), id);
-        wayNodesMap.put(id, wayNode);
+        long id = road.osmId;
 
         // Make a temporary ReaderWay object with the properties we need so we
         // can use the enocding manager
@@ -411,83 +1085,808 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
         // encoders, which don't use this...
         ReaderWay way = new ReaderWay(id);
 
-        way.setTag("estimated_distance", distance);
-        way.setTag("estimated_center", estmCentre);
-
         // Тип дороги
-        Object type = road.getAttribute("fclass");
+        String type = road.fclass;
         if (type != null) {
-            way.setTag("highway", type.toString());
+            way.setTag("highway", type);
         }
 
         // Максимальная скорость
-        Object maxSpeed = road.getAttribute("maxspeed");
-        if (maxSpeed != null && !maxSpeed.toString().trim().equals("0")) {
-            way.setTag("maxspeed", maxSpeed.toString());
+        String maxSpeed = road.maxSpeed;
+        if (maxSpeed != null && !maxSpeed.trim().equals("0")) {
+            way.setTag("maxspeed", maxSpeed);
         }
 
-        for (String tag : tagsToCopy) {
-            Object val = road.getAttribute(tag);
+        for (int i = 0; i < tagsToCopy.length; i++) {
+            String val = road.tags[i];
             if (val != null) {
-                way.setTag(tag, val);
+                way.setTag(tagsToCopy[i], val);
             }
         }
 
         // Односторонее движение
-        Object oneway = road.getAttribute("oneway");
+        String oneway = road.oneway;
         if (oneway != null) {
             // Geofabrik is using an odd convention for oneway field in
             // shapefile.
             // We map back to the standard convention so that tag can be dealt
             // with correctly by the flag encoder.
-            String val = toLowerCase(oneway.toString().trim());
-            if (val.equals("b") || val.equals("no")) {
-                // в обоих направлениях
-                val = "no";
-            } else if (val.equals("t") || val.equals("-1")) {
-                // односторонее: "Обратно направлению оцифровки"
-                val = "-1";
-            } else if (val.equals("f") || val.equals("yes")) {
-                // односторонее: "Вперёд в направлении оцифровки"
-                val = "yes";
-            } else {
-                val = "no";
-            }
-
-            way.setTag("oneway", val);
+            way.setTag("oneway", toOneway(oneway));
         }
 
-        // Проверка доступности в Encoder
-        EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
-        if (!encodingManager.acceptWay(way, acceptWay)) {
-            return;
-        }
+        return way;
+    }
 
-        IntsRef edgeFlags = encodingManager.handleWayTags(way, acceptWay, tempRelFlags);
-        if (edgeFlags.isEmpty()) {
-            return;
-        }
+    /**
+     * Приблизительный центр ребра - середина между его узлами, как у
+     * OSMReader
+     */
+    private static void setEstimatedCenter(ReaderWay way, double fromLat, double fromLon, double toLat, double toLon) {
+        way.setTag("estimated_center", new GHPoint(0.5 * (fromLat + toLat), 0.5 * (fromLon + toLon)));
+    }
+
+    /**
+     * Сначала ищет значение как есть, чтобы обычные значения не требовали
+     * trim и toLowerCase
+     */
+    private static String toOneway(String oneway) {
+        String val = ONEWAY_VALUES.get(oneway);
+        if (val == null) {
+            val = ONEWAY_VALUES.get(toLowerCase(oneway.trim()));
+        }
+        return val == null ? "no" : val;
+    }
+
+    /**
+     * Флаги, общие для всех рёбер дороги. Берутся из кэша, если такое
+     * сочетание атрибутов уже встречалось.
+     *
+     * @return флаги или null, если дорога не подходит ни одному encoder или
+     * это паром. Для парома acceptWay.isFerry() = true, его флаги считаются
+     * для каждого ребра.
+     */
+    private IntsRef getRoadFlags(RoadRecord road, ReaderWay way, EncodingManager.AcceptWay acceptWay) {
+        if (flagCache != null) {
+            FlagCache.Entry cached = flagCache.get(road);
+            if (cached != null) {
+                return cached.flags;
+            }
+        }
+
+        IntsRef roadFlags = null;
+        if (encodingManager.acceptWay(way, acceptWay)) {
+            if (acceptWay.isFerry()) {
+                return null;
+            }
+            roadFlags = getEdgeFlags(way, acceptWay);
+        }
+
+        if (flagCache != null) {
+            flagCache.put(road, roadFlags == null ? FlagCache.REJECTED : new FlagCache.Entry(roadFlags));
+        }
+        return roadFlags;
+    }
+
+    /**
+     * @return флаги ребра или null, если ни один encoder их не выставил
+     */
+    private IntsRef getEdgeFlags(ReaderWay way, EncodingManager.AcceptWay acceptWay) {
+        IntsRef edgeFlags = encodingManager.handleWayTags(way, acceptWay, tempRelFlags);
+        return edgeFlags.isEmpty() ? null : edgeFlags;
+    }
+
+    /**
+     * Перечитывает атрибуты дорог и перезаписывает флаги их рёбер в
+     * загруженном графе. Геометрия, узлы и номера рёбер не меняются, поэтому
+     * индекс поиска остаётся верным. Запросы, идущие одновременно, могут
+     * увидеть у ребра как старые, так и новые флаги.
+     *
+     * @return число обновлённых рёбер
+     */
+    int refreshAttributes(final long[] osmIds) {
+        final int[] refreshed = new int[1];
+        metrics.runPhase("refresh", () -> refreshed[0] = refreshEdges(osmIds));
+        if (tagStore != null) {
+            tagStore.flush();
+        }
+        return refreshed[0];
+    }
+
+    private int refreshEdges(long[] osmIds) {
+        updateIds = new LongHashSet(osmIds.length * 2);
+        for (long osmId : osmIds) {
+            updateIds.add(osmId);
+        }
+
+        int refreshed = 0;
+        RoadCursor roads = null;
+        try {
+            roads = metrics.track(openRoads());
+
+            RoadRecord road = new RoadRecord(tagsToCopy.length);
+            IntArrayList edges = new IntArrayList();
+            IntsRef noAccess = encodingManager.createEdgeFlags();
+            while (roads.next(road)) {
+                edges.clear();
+                osmIdStore.findEdges(road.osmId, edges);
+                if (edges.isEmpty() || road.getPointCount() == 0) {
+                    continue;
+                }
+
+                ReaderWay way = createWay(road);
+                setEstimatedCenter(way, graph.getEdgeIteratorState(edges.get(0), Integer.MIN_VALUE));
+                EncodingManager.AcceptWay acceptWay = new EncodingManager.AcceptWay();
+                IntsRef roadFlags = getRoadFlags(road, way, acceptWay);
+                for (int i = 0; i < edges.size(); i++) {
+                    EdgeIteratorState edge = graph.getEdgeIteratorState(edges.get(i), Integer.MIN_VALUE);
+                    setEstimatedCenter(way, edge);
+                    IntsRef edgeFlags = roadFlags;
+                    if (acceptWay.isFerry()) {
+                        way.setTag("estimated_distance", edge.getDistance());
+                        edgeFlags = getEdgeFlags(way, acceptWay);
+                    }
+
+                    if (edgeFlags == null) {
+                        edge.setFlags(noAccess);
+                    } else {
+                        edge.setFlags(edgeFlags);
+                        encodingManager.applyWayTags(way, edge);
+                    }
+                    if (tagStore != null) {
+                        tagStore.setTags(edge.getEdge(), road.tags);
+                    }
+                    refreshed++;
+                }
+            }
+        } finally {
+            updateIds = null;
+            if (roads != null) {
+                roads.close();
+            }
+        }
+        return refreshed;
+    }
+
+    /**
+     * Центр ребра графа по его узлам
+     */
+    private void setEstimatedCenter(ReaderWay way, EdgeIteratorState edge) {
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        setEstimatedCenter(way, nodeAccess.getLat(edge.getBaseNode()), nodeAccess.getLon(edge.getBaseNode()),
+                nodeAccess.getLat(edge.getAdjNode()), nodeAccess.getLon(edge.getAdjNode()));
+    }
+
+    /**
+     * Точки ребра от узла до узла. Как в OSMReader, в 3D графе длинные
+     * участки дополняются точками с высотой из ElevationProvider, затем
+     * столбы упрощаются алгоритмом Дугласа-Пекера, узлы остаются на месте.
+     * Длина ребра считается по исходной геометрии.
+     */
+    private PointList getEdgePoints(RoadRecord road, int first, int last) {
+        PointList points = edgePoints;
+        points.clear();
+        for (int i = first; i <= last; i++) {
+            if (points.is3D()) {
+                points.add(road.lats[i], road.lons[i], road.eles[i]);
+            } else {
+                points.add(road.lats[i], road.lons[i]);
+            }
+        }
+
+        if (longEdgeSamplingDistance < Double.MAX_VALUE && points.is3D() && eleProvider != ElevationProvider.NOOP) {
+            points = EdgeSampling.sample(points, longEdgeSamplingDistance, distCalc, eleProvider);
+        }
+        if (wayPointMaxDistance > 0 && !simplifyInDatabase && points.size() > 2) {
+            simplifyAlgo.simplify(points);
+        }
+        return points;
+    }
+
+    /**
+     * @return выражение SQL для геометрии дорог, упрощённой в PostGIS с
+     * допуском way_point_max_distance, если simplify=database. Концы линий
+     * ST_SimplifyPreserveTopology не сдвигает, но точки примыкания других
+     * дорог внутри линии может удалить, поэтому режим подходит только для
+     * сети, где дороги разбиты на перекрёстках.
+     */
+    String getRoadGeometrySql(String geometry) {
+        if (!simplifyInDatabase || wayPointMaxDistance <= 0) {
+            return geometry;
+        }
+        return "ST_SimplifyPreserveTopology(" + geometry + ", " + wayPointMaxDistance / METERS_PER_DEGREE + ")";
+    }
+
+    /**
+     * @return область импорта из настроек bbox, polygon и region или null
+     */
+    private synchronized SpatialFilter getSpatialFilter() {
+        if (!spatialFilterLoaded) {
+            spatialFilter = SpatialFilter.create(getPostgisParams(), roadsFile.getName());
+            spatialFilterLoaded = true;
+        }
+        return spatialFilter;
+    }
+
+    /**
+     * Ограничивает запросы GeoTools областью импорта, если она задана
+     */
+    @Override
+    protected Filter getFilter(FeatureSource source) {
+        SpatialFilter filter = getSpatialFilter();
+        return filter == null ? super.getFilter(source) : filter.getFilter((SimpleFeatureType) source.getSchema());
+    }
+
+    /**
+     * Ограничивает запросы SQL к таблице дорог областью импорта, если она
+     * задана
+     */
+    @Override
+    protected String getSqlFilter() {
+        SpatialFilter filter = getSpatialFilter();
+        return filter == null ? super.getSqlFilter() : filter.getSql();
+    }
+
+    private void writeEdges(PreparedEdges edges, ImportMetrics.Phase phase) {
+        for (int i = 0; i < edges.size(); i++) {
+            long start = System.nanoTime();
+            writeEdge(edges, i);
+            phase.addEdge(System.nanoTime() - start, edges.getFlags(i) == null);
+        }
+        edges.clear();
+    }
+
+    private void saveTowerHeight(int nodeId, double lat, double lon, double ele) {
+        if (nodeId < firstNodeWithoutHeight) {
+            return;
+        }
+        if (towersWithHeight == null) {
+            towersWithHeight = new BitSet(nextNodeId);
+        }
+        if (!towersWithHeight.get(nodeId)) {
+            towersWithHeight.set(nodeId);
+            saveTowerPosition(nodeId, lat, lon, ele);
+        }
+    }
+
+    /**
+     * Записывает ребро в граф. Рёбра создаются и для дорог, которые не
+     * подошли ни одному encoder, чтобы их номера не зависели от профилей.
+     */
+    void writeEdge(PreparedEdges edges, int i) {
+        EdgeIteratorState edge = graph.edge(edges.getFromTower(i), edges.getToTower(i));
+
+        // saving osm id of the edge, used by restrictions and at query time
+        RoadRecord road = edges.getRoad(i);
+        osmIdStore.setOsmId(edge.getEdge(), road.osmId);
+        if (tagStore != null) {
+            tagStore.setTags(edge.getEdge(), road.tags);
+        }
+
+        if (++edgeCounter % 1_000_000 == 0) {
+            LOGGER.info(nf(edgeCounter) + " (edges) " + Helper.getMemInfo());
+        }
+
+        IntsRef edgeFlags = edges.getFlags(i);
+        if (edgeFlags == null) {
+            return;
+        }
+
+        int first = edges.getFirstPoint(i);
+        int last = edges.getLastPoint(i);
+        if (pillarNodes.is3D()) {
+            // узлы создаются без высоты, она берётся из первого принятого ребра
+            saveTowerHeight(edges.getFromTower(i), road.lats[first], road.lons[first], road.eles[first]);
+            saveTowerHeight(edges.getToTower(i), road.lats[last], road.lons[last], road.eles[last]);
+        }
+
+        // буферы точек переиспользуются, setWayGeometry копирует точки в граф
+        PointList points = getEdgePoints(road, first, last);
+        pillarNodes.clear();
+        for (int pillar = 1; pillar < points.size() - 1; pillar++) {
+            if (pillarNodes.is3D()) {
+                pillarNodes.add(points.getLat(pillar), points.getLon(pillar), points.getEle(pillar));
+            } else {
+                pillarNodes.add(points.getLat(pillar), points.getLon(pillar));
+            }
+        }
 
+        ReaderWay way = edges.getWay(i);
+        setEstimatedCenter(way, road.lats[first], road.lons[first], road.lats[last], road.lons[last]);
+        double distance = edges.getDistance(i);
         edge.setDistance(distance);
         edge.setFlags(edgeFlags);
         edge.setWayGeometry(pillarNodes);
         encodingManager.applyWayTags(way, edge);
 
         if (edgeAddedListeners.size() > 0) {
+            way.setTag("estimated_distance", distance);
             // check size first so we only allocate the iterator if we have
             // listeners
             for (EdgeAddedListener l : edgeAddedListeners) {
                 l.edgeAdded(way, edge);
             }
         }
+
+        if (!edgeBatchListeners.isEmpty()) {
+            if (edgeDispatchers == null) {
+                edgeDispatchers = new ArrayList<>(edgeBatchListeners.size());
+                for (EdgeBatchListener l : edgeBatchListeners) {
+                    edgeDispatchers.add(new EdgeBatchDispatcher(l, edgeListenerBatchSize, edgeListenerQueueSize));
+                }
+            }
+            for (EdgeBatchDispatcher dispatcher : edgeDispatchers) {
+                dispatcher.add(way, edge, distance);
+            }
+        }
+    }
+
+    /**
+     * @return позиции нужных колонок в типе строки; binding возвращается как
+     * есть, если он подходит к этому типу
+     */
+    FeatureBinding bind(SimpleFeature feature, FeatureBinding binding) {
+        return FeatureBinding.of(binding, feature, tagsToCopy);
+    }
+
+    /**
+     * Копирует из строки таблицы всё, что нужно для импорта. Атрибуты
+     * читаются по позициям из binding, а не по именам.
+     */
+    void readRoad(SimpleFeature feature, FeatureBinding binding, RoadRecord road) {
+        road.clear();
+        Object osmId = FeatureBinding.get(feature, binding.osmId);
+        road.osmId = toLong(osmId);
+        road.fclass = toString(FeatureBinding.get(feature, binding.fclass));
+        road.maxSpeed = toString(FeatureBinding.get(feature, binding.maxSpeed));
+        road.oneway = toString(FeatureBinding.get(feature, binding.oneway));
+        road.restriction = (String) FeatureBinding.get(feature, binding.restriction);
+
+        Object restrictionTo = FeatureBinding.get(feature, binding.restrictionTo);
+        road.restrictionTo = restrictionTo == null ? 0 : ((Number) restrictionTo).longValue();
+        Object restrictionVia = FeatureBinding.get(feature, binding.restrictionVia);
+        road.restrictionVia = restrictionVia == null ? 0 : ((Number) restrictionVia).longValue();
+
+        for (int i = 0; i < binding.tags.length; i++) {
+            road.tags[i] = toString(FeatureBinding.get(feature, binding.tags[i]));
+        }
+
+        for (Coordinate[] points : getCoords(feature)) {
+            for (Coordinate point : points) {
+                roundCoordinate(point);
+                road.addPoint(lat(point), lng(point), point.z);
+            }
+            road.endPart();
+        }
+    }
+
+    private static String toString(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Открывает очередной проход по дорогам. В режиме single_scan первый проход
+     * читает БД и пишет строки в локальный файл, последующие читают этот файл.
+     * Если таблица разбита на части, первый проход читает их параллельно,
+     * каждую в свой файл.
+     */
+    RoadCursor openRoads() {
+        if (roadSource != null) {
+            return roadSource.get();
+        }
+
+        if (updateIds != null) {
+            return openUpdatedRoads();
+        }
+
+        if (isSpooled()) {
+            return new PartitionedRoadCursor(roadSpools);
+        }
+
+        closeSpools();
+        List<Supplier<RoadCursor>> partitions = getPartitions();
+        if (partitions.size() > 1 || !partitionTables.isEmpty()) {
+            for (int i = 0; i < partitions.size(); i++) {
+                roadSpools.add(createSpool("roads-" + i));
+            }
+            return new PartitionedRoadCursor(partitions, roadSpools, workerThreads, tagsToCopy.length);
+        }
+
+        if (!singleScan) {
+            return createRoadCursor(roadsFile.getName(), null);
+        }
+
+        RoadSpool roadSpool = createSpool("roads");
+        roadSpools.add(roadSpool);
+        if (roadSpool.isComplete()) {
+            LOGGER.info("Single scan mode, roads are replayed from the checkpoint " + roadSpool.getFile());
+            return roadSpool.replay();
+        }
+        LOGGER.info("Single scan mode, roads are spooled to " + roadSpool.getFile());
+        return roadSpool.record(createRoadCursor(roadsFile.getName(), null));
+    }
+
+    private boolean isSpooled() {
+        if (roadSpools.isEmpty()) {
+            return false;
+        }
+
+        for (RoadSpool roadSpool : roadSpools) {
+            if (!roadSpool.isComplete()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * С контрольной точкой файлы хранятся в её каталоге под постоянными
+     * именами, чтобы после перезапуска прочитать их снова, а не БД
+     */
+    private RoadSpool createSpool(String name) {
+        if (checkpoint != null) {
+            return new RoadSpool(checkpoint.getFile(name + ".spool"), true);
+        }
+
+        try {
+            return new RoadSpool(File.createTempFile(name, ".spool", spoolDir));
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Части, на которые делится таблица дорог для параллельного чтения: либо
+     * заданные таблицы (например, партиции PostgreSQL), либо диапазоны osm_id
+     * одинаковой ширины.
+     */
+    private List<Supplier<RoadCursor>> getPartitions() {
+        List<Supplier<RoadCursor>> partitions = new ArrayList<>();
+        if (!partitionTables.isEmpty()) {
+            for (final String table : partitionTables) {
+                partitions.add(() -> createRoadCursor(table, null));
+            }
+            return partitions;
+        }
+
+        if (readPartitions <= 1) {
+            return partitions;
+        }
+
+        final String table = roadsFile.getName();
+        long[] range;
+        DataStore dataStore = openPostGisStore();
+        try {
+            if (!isNumeric(dataStore, table, "osm_id")) {
+                // min и max текста не ограничивают числа, диапазоны пропустили бы строки
+                LOGGER.warn("osm_id of " + table + " is not numeric, the roads are read as one partition");
+                return partitions;
+            }
+            range = getRange(dataStore, table, "osm_id");
+        } finally {
+            dataStore.dispose();
+        }
+        if (range == null) {
+            return partitions;
+        }
+
+        long step = (range[1] - range[0]) / readPartitions + 1;
+        for (long from = range[0]; from <= range[1]; from += step) {
+            final long[] osmIdRange = {from, from + step};
+            partitions.add(() -> createRoadCursor(table, osmIdRange));
+        }
+        return partitions;
+    }
+
+    /**
+     * Курсор по таблице дорог: через GeoTools или, при reader=jdbc, напрямую
+     * через JDBC с разбором WKB.
+     *
+     * @param osmIdRange {from, to} (to не включается) или null для всей таблицы
+     */
+    private RoadCursor createRoadCursor(String table, long[] osmIdRange) {
+        if (osmIdRange == null) {
+            return jdbcReader ? new JdbcRoadCursor(this, table, tagsToCopy, null) : new FeatureRoadCursor(this, table);
+        }
+
+        if (jdbcReader) {
+            return new JdbcRoadCursor(this, table, tagsToCopy, "osm_id >= ? AND osm_id < ?", osmIdRange[0], osmIdRange[1]);
+        }
+
+        Filter filter = FF.and(
+                FF.greaterOrEqual(FF.property("osm_id"), FF.literal(osmIdRange[0])),
+                FF.less(FF.property("osm_id"), FF.literal(osmIdRange[1])));
+        return new FeatureRoadCursor(this, table, filter, null);
+    }
+
+    private CoordinateIndex createCoordinateIndex() {
+        return createCoordinateIndex(coordIndexSize);
+    }
+
+    private CoordinateIndex createCoordinateIndex(long expectedSize) {
+        if (!offHeapIndex) {
+            return CoordinateIndex.onHeap(expectedSize);
+        }
+
+        File tmpDir = spoolDir == null ? new File(System.getProperty("java.io.tmpdir")) : spoolDir;
+        LOGGER.info("Coordinate index is memory-mapped in " + tmpDir);
+        return CoordinateIndex.offHeap(tmpDir, expectedSize);
+    }
+
+    private boolean hasChangeSource() {
+        return !changelogTable.isEmpty() || !updateColumn.isEmpty();
+    }
+
+    /**
+     * Применяет к загруженному графу изменения, сделанные в PostGIS после
+     * прошлого импорта или обновления.
+     * <p>
+     * Перечитываются изменённые дороги и все дороги, которые их касаются.
+     * Старые рёбра этих дорог остаются в графе, но без доступа для всех
+     * профилей, новые добавляются в конец. Существующие узлы переиспользуются,
+     * новые узлы тоже добавляются в конец.
+     *
+     * @return число перечитанных дорог
+     */
+    int updateGraph() {
+        if (!hasChangeSource()) {
+            throw new IllegalStateException("Set update_column or changelog_table to update the graph");
+        }
+
+        String watermark = ghStorage.getProperties().get(WATERMARK_PROPERTY);
+        if (watermark == null || watermark.isEmpty()) {
+            throw new IllegalStateException("The graph was imported without a change source, reimport it first");
+        }
+
+        String newWatermark = queryWatermark();
+        SourceFingerprint newFingerprint = getSourceFingerprint();
+        LongHashSet changed = queryChangedRoads(watermark);
+        LOGGER.info("Changed roads since " + watermark + ": " + nf(changed.size()));
+
+        int updated = 0;
+        if (!changed.isEmpty()) {
+            updateIds = findAffectedRoads(changed);
+            updated = updateIds.size();
+            LOGGER.info("Roads to reimport, including touching ones: " + nf(updated));
+            try {
+                disableEdges(updateIds);
+                coordState = createNodeIndex();
+                nextNodeId = graph.getNodes();
+                firstNodeWithoutHeight = nextNodeId;
+                towersWithHeight = null;
+                metrics.runPhase("junctions", this::processJunctionsFromRoads);
+                metrics.runPhase("roads", this::processRoads);
+                metrics.runPhase("restrictions", this::processRestrictions);
+            } catch (RuntimeException | Error e) {
+                abortReading();
+                throw e;
+            } finally {
+                updateIds = null;
+            }
+        }
+
+        ghStorage.getProperties().put(WATERMARK_PROPERTY, newWatermark);
+        newFingerprint.store(ghStorage.getProperties());
+        finishReading();
+        return updated;
+    }
+
+    /**
+     * Читать дороги из заданного источника, а не из PostGIS
+     */
+    void setRoadSource(Supplier<RoadCursor> roadSource) {
+        this.roadSource = roadSource;
+    }
+
+    void setOsmIdStore(OsmIdStore osmIdStore) {
+        this.osmIdStore = osmIdStore;
+    }
+
+    /**
+     * @param tagStore хранилище загруженного графа, null если его нет
+     */
+    void setTagStore(TagStore tagStore) {
+        this.tagStore = tagStore;
+    }
+
+    TagStore getTagStore() {
+        return tagStore;
+    }
+
+    private String getChangeTable() {
+        return changelogTable.isEmpty() ? roadsFile.getName() : changelogTable;
+    }
+
+    private String getChangeColumn() {
+        return Utils.quoteIdentifier(changelogTable.isEmpty() ? updateColumn : "changed_at");
+    }
+
+    private String queryWatermark() {
+        String sql = "SELECT max(" + getChangeColumn() + ")::text FROM " + getQualifiedName(getChangeTable());
+        DataStore dataStore = openPostGisStore();
+        try (SqlCursor cursor = new SqlCursor(getConnection(dataStore), sql)) {
+            ResultSet rs = cursor.getResultSet();
+            String watermark = rs.next() ? rs.getString(1) : null;
+            return watermark == null ? NO_WATERMARK : watermark;
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
+        }
+    }
+
+    private LongHashSet queryChangedRoads(String watermark) {
+        String sql = "SELECT DISTINCT osm_id FROM " + getQualifiedName(getChangeTable())
+                + " WHERE " + getChangeColumn()
+                + (NO_WATERMARK.equals(watermark) ? " IS NOT NULL" : " > " + Utils.quoteLiteral(watermark));
+        LongHashSet changed = new LongHashSet();
+        DataStore dataStore = openPostGisStore();
+        try (SqlCursor cursor = new SqlCursor(getConnection(dataStore), sql)) {
+            ResultSet rs = cursor.getResultSet();
+            while (rs.next()) {
+                changed.add(rs.getLong(1));
+            }
+            return changed;
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
+        }
+    }
+
+    /**
+     * Изменённые дороги и дороги, которые касаются их новой геометрии: у них
+     * могут появиться новые узлы. Удалённые из таблицы дороги остаются в
+     * списке, чтобы отключить их рёбра.
+     */
+    private LongHashSet findAffectedRoads(LongHashSet changed) {
+        long[] ids = changed.toArray();
+        Arrays.sort(ids);
+        LongHashSet affected = new LongHashSet(ids.length * 2);
+        for (long id : ids) {
+            affected.add(id);
+        }
+
+        String table = roadsFile.getName();
+        DataStore dataStore = openPostGisStore();
+        try {
+            String qualified = getQualifiedName(table);
+            String geometry = getGeometryColumn(dataStore, table);
+            for (int from = 0; from < ids.length; from += UPDATE_BATCH_SIZE) {
+                int to = Math.min(ids.length, from + UPDATE_BATCH_SIZE);
+                String sql = "SELECT DISTINCT r.osm_id FROM " + qualified + " r JOIN " + qualified + " c"
+                        + " ON ST_DWithin(r." + geometry + ", c." + geometry + ", " + NEIGHBOUR_DISTANCE + ")"
+                        + " WHERE c.osm_id = ANY(" + toSqlArray(ids, from, to) + ")";
+                try (SqlCursor cursor = new SqlCursor(getConnection(dataStore), sql)) {
+                    ResultSet rs = cursor.getResultSet();
+                    while (rs.next()) {
+                        affected.add(rs.getLong(1));
+                    }
+                }
+            }
+            return affected;
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
+        }
+    }
+
+    private static String toSqlArray(long[] ids, int from, int to) {
+        StringBuilder sb = new StringBuilder("'{");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        return sb.append("}'::bigint[]").toString();
+    }
+
+    /**
+     * Рёбра дорог остаются в графе, чтобы не менять номера остальных рёбер,
+     * но теряют доступ для всех профилей и свой osm_id
+     */
+    private void disableEdges(LongHashSet osmIds) {
+        IntsRef noAccess = encodingManager.createEdgeFlags();
+        IntArrayList edges = new IntArrayList();
+        for (long osmId : osmIds.toArray()) {
+            edges.clear();
+            osmIdStore.findEdges(osmId, edges);
+            for (int i = 0; i < edges.size(); i++) {
+                int edge = edges.get(i);
+                graph.getEdgeIteratorState(edge, Integer.MIN_VALUE).setFlags(noAccess);
+                osmIdStore.setOsmId(edge, -1);
+                if (tagStore != null) {
+                    tagStore.clearTags(edge);
+                }
+            }
+        }
+    }
+
+    /**
+     * Индекс координат существующих узлов графа, они остаются узлами
+     */
+    private CoordinateIndex createNodeIndex() {
+        int nodes = graph.getNodes();
+        CoordinateIndex index = createCoordinateIndex(Math.max(nodes, coordIndexSize));
+        NodeAccess nodeAccess = graph.getNodeAccess();
+        for (int node = FIRST_NODE_ID; node < nodes; node++) {
+            index.put(CoordinateIndex.key(nodeAccess.getLat(node), nodeAccess.getLon(node)), node);
+        }
+        return index;
+    }
+
+    private RoadCursor openUpdatedRoads() {
+        final long[] ids = updateIds.toArray();
+        Arrays.sort(ids);
+        final String table = roadsFile.getName();
+        List<Supplier<RoadCursor>> batches = new ArrayList<>();
+        for (int from = 0; from < ids.length; from += UPDATE_BATCH_SIZE) {
+            final int batchFrom = from;
+            final int batchTo = Math.min(ids.length, from + UPDATE_BATCH_SIZE);
+            batches.add(() -> createRoadCursor(table, ids, batchFrom, batchTo));
+        }
+        return new ChainedRoadCursor(batches);
+    }
+
+    /**
+     * Курсор по дорогам с osm_id из ids[from, to)
+     */
+    private RoadCursor createRoadCursor(String table, long[] ids, int from, int to) {
+        if (jdbcReader) {
+            return new JdbcRoadCursor(this, table, tagsToCopy, "osm_id = ANY(" + toSqlArray(ids, from, to) + ")");
+        }
+
+        List<Filter> filters = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            filters.add(FF.equals(FF.property("osm_id"), FF.literal(ids[i])));
+        }
+        return new FeatureRoadCursor(this, table, FF.or(filters), null);
+    }
+
+    OsmIdStore getOsmIdStore() {
+        return osmIdStore;
+    }
+
+    /**
+     * Открывает проход по запретам поворотов. Из БД запрашиваются только
+     * строки с restriction и только нужные для этого колонки, без геометрии.
+     * Если задан restrictions_table, запреты читаются из него.
+     */
+    RoadCursor openRestrictions() {
+        if (roadSource != null) {
+            return roadSource.get();
+        }
+
+        if (restrictionsTable.isEmpty() && isSpooled()) {
+            return new PartitionedRoadCursor(roadSpools);
+        }
+
+        String table = restrictionsTable.isEmpty() ? roadsFile.getName() : restrictionsTable;
+        Filter filter = FF.not(FF.isNull(FF.property("restriction")));
+        return new FeatureRoadCursor(this, table, filter,
+                hasColumn(table, "restriction_via") ? VIA_RESTRICTION_PROPERTIES : RESTRICTION_PROPERTIES);
+    }
+
+    private boolean hasColumn(String table, String column) {
+        DataStore dataStore = openPostGisStore();
+        try {
+            return dataStore.getSchema(table).indexOf(column) >= 0;
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
+        }
     }
 
-    private long getOSMId(SimpleFeature road) {
-        long id = Long.parseLong(road.getAttribute("osm_id").toString());
-        return id;
+    private void closeSpools() {
+        for (RoadSpool roadSpool : roadSpools) {
+            roadSpool.close();
+        }
+        roadSpools.clear();
     }
 
-    private Coordinate roundCoordinate(Coordinate c) {
+    Coordinate roundCoordinate(Coordinate c) {
         c.x = Helper.round6(c.x);
         c.y = Helper.round6(c.y);
 
@@ -501,23 +1900,8 @@ public class OSMPostgisReader extends PostgisReader implements TurnCostParser.Ex
     public void addListener(EdgeAddedListener l) {
         edgeAddedListeners.add(l);
     }
-}
-
-class WayNodes {
-
-    private int fromNode;
-    private int toNode;
-
-    WayNodes(int fromNode, int toNode) {
-        this.fromNode = fromNode;
-        this.toNode = toNode;
-    }
-
-    public int getFromNode() {
-        return fromNode;
-    }
 
-    public int getToNode() {
-        return toNode;
+    public void addListener(EdgeBatchListener l) {
+        edgeBatchListeners.add(l);
     }
 }
@@ -0,0 +1,151 @@
+package com.graphhopper.reader.postgis;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.carrotsearch.hppc.sorting.IndirectSort;
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import java.io.Closeable;
+
+/**
+ * OSM ids of the edges, stored next to the graph.
+ * <p>
+ * postgis_edge_osm_ids holds one long per edge. postgis_way_edges holds the
+ * (osm id, edge id) pairs sorted by osm id, so all edges of a way can be found
+ * with a binary search. The end nodes of those edges are read from the graph
+ * itself. Both files are memory-mapped when the graph is loaded.
+ */
+public class OsmIdStore implements Closeable {
+
+    private static final int VERSION = 1;
+    private static final int EDGE_BYTES = 8;
+    private static final int WAY_BYTES = 12;
+
+    private final DataAccess edgeOsmIds;
+    private final DataAccess wayEdges;
+    private int edgeCount;
+    private int wayEdgeCount;
+
+    public OsmIdStore(Directory dir) {
+        DAType type = dir.getDefaultType().isStoring() ? DAType.MMAP : dir.getDefaultType();
+        this.edgeOsmIds = dir.find("postgis_edge_osm_ids", type);
+        this.wayEdges = dir.find("postgis_way_edges", type);
+    }
+
+    OsmIdStore create(int edges) {
+        edgeOsmIds.create(Math.max(edges, 1) * (long) EDGE_BYTES);
+        wayEdges.create(WAY_BYTES);
+        edgeCount = 0;
+        wayEdgeCount = 0;
+        return this;
+    }
+
+    public boolean loadExisting() {
+        if (!edgeOsmIds.loadExisting() || !wayEdges.loadExisting()) {
+            return false;
+        }
+
+        if (edgeOsmIds.getHeader(0) != VERSION) {
+            throw new IllegalStateException("Unsupported version of " + edgeOsmIds.getName()
+                    + ": " + edgeOsmIds.getHeader(0) + ", expected " + VERSION);
+        }
+        edgeCount = edgeOsmIds.getHeader(4);
+        wayEdgeCount = wayEdges.getHeader(4);
+        return true;
+    }
+
+    void setOsmId(int edgeId, long osmId) {
+        long pointer = (long) edgeId * EDGE_BYTES;
+        edgeOsmIds.ensureCapacity(pointer + EDGE_BYTES);
+        edgeOsmIds.setInt(pointer, (int) (osmId >>> 32));
+        edgeOsmIds.setInt(pointer + 4, (int) osmId);
+        edgeCount = Math.max(edgeCount, edgeId + 1);
+    }
+
+    /**
+     * @return the OSM id of the edge or -1 if the edge is unknown
+     */
+    public long getOsmId(int edgeId) {
+        if (edgeId < 0 || edgeId >= edgeCount) {
+            return -1;
+        }
+        return getLong(edgeOsmIds, (long) edgeId * EDGE_BYTES);
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Sorts the edge ids by OSM id. Has to be called after the last edge was
+     * added and before the way lookups.
+     */
+    void buildWayIndex() {
+        final long[] osmIds = new long[edgeCount];
+        for (int edge = 0; edge < edgeCount; edge++) {
+            osmIds[edge] = getOsmId(edge);
+        }
+
+        // merge sort is stable, so the edges of a way stay in their original order
+        int[] order = IndirectSort.mergesort(0, edgeCount, (a, b) -> Long.compare(osmIds[a], osmIds[b]));
+
+        wayEdges.ensureCapacity(Math.max(edgeCount, 1) * (long) WAY_BYTES);
+        for (int i = 0; i < order.length; i++) {
+            long pointer = (long) i * WAY_BYTES;
+            long osmId = osmIds[order[i]];
+            wayEdges.setInt(pointer, (int) (osmId >>> 32));
+            wayEdges.setInt(pointer + 4, (int) osmId);
+            wayEdges.setInt(pointer + 8, order[i]);
+        }
+        wayEdgeCount = order.length;
+    }
+
+    /**
+     * Adds all edges of the OSM way to the list, in the order they were
+     * created.
+     *
+     * @return the number of edges found
+     */
+    public int findEdges(long osmId, IntArrayList edges) {
+        int low = 0;
+        int high = wayEdgeCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getLong(wayEdges, (long) mid * WAY_BYTES) < osmId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        int found = 0;
+        for (int i = low; i < wayEdgeCount; i++) {
+            long pointer = (long) i * WAY_BYTES;
+            if (getLong(wayEdges, pointer) != osmId) {
+                break;
+            }
+            edges.add(wayEdges.getInt(pointer + 8));
+            found++;
+        }
+        return found;
+    }
+
+    private static long getLong(DataAccess da, long pointer) {
+        return (long) da.getInt(pointer) << 32 | (da.getInt(pointer + 4) & 0xFFFFFFFFL);
+    }
+
+    public void flush() {
+        edgeOsmIds.setHeader(0, VERSION);
+        edgeOsmIds.setHeader(4, edgeCount);
+        wayEdges.setHeader(0, VERSION);
+        wayEdges.setHeader(4, wayEdgeCount);
+        edgeOsmIds.flush();
+        wayEdges.flush();
+    }
+
+    @Override
+    public void close() {
+        edgeOsmIds.close();
+        wayEdges.close();
+    }
+}
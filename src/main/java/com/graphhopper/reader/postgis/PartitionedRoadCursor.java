@@ -0,0 +1,128 @@
+package com.graphhopper.reader.postgis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the partitions of the roads source on several connections at once.
+ * <p>
+ * Every partition is fetched on its own thread into its own spool. The
+ * cursor returns the partitions strictly in the given order, each one as soon
+ * as its fetch is finished, so the result does not depend on which fetch
+ * ends first.
+ */
+class PartitionedRoadCursor implements RoadCursor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedRoadCursor.class);
+
+    private final List<RoadSpool> spools;
+    private final List<Future<?>> fetches = new ArrayList<>();
+    private final ExecutorService executor;
+    private int current = -1;
+    private RoadCursor replay;
+
+    /**
+     * Replays spools that were already written completely.
+     */
+    PartitionedRoadCursor(List<RoadSpool> spools) {
+        this.spools = spools;
+        this.executor = null;
+    }
+
+    /**
+     * Starts fetching the partitions, partition i is written to spool i.
+     * Partitions whose spool is already complete are not fetched again.
+     */
+    PartitionedRoadCursor(List<Supplier<RoadCursor>> partitions, List<RoadSpool> spools,
+            int threads, final int tagCount) {
+        if (partitions.size() != spools.size()) {
+            throw new IllegalArgumentException("Need one spool per partition");
+        }
+
+        this.spools = spools;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, partitions.size())));
+        LOGGER.info("Reading " + partitions.size() + " partitions with " + Math.min(threads, partitions.size()) + " threads");
+
+        for (int i = 0; i < partitions.size(); i++) {
+            final Supplier<RoadCursor> partition = partitions.get(i);
+            final RoadSpool spool = spools.get(i);
+            final int partitionNo = i;
+            if (spool.isComplete()) {
+                // kept by the checkpoint of an interrupted import
+                LOGGER.info("Partition " + i + " is replayed from " + spool.getFile());
+                fetches.add(CompletableFuture.completedFuture(null));
+                continue;
+            }
+            fetches.add(executor.submit(() -> {
+                RoadCursor writer = spool.record(partition.get());
+                try {
+                    RoadRecord road = new RoadRecord(tagCount);
+                    while (writer.next(road)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new IllegalStateException("Reading partition " + partitionNo + " was interrupted");
+                        }
+                    }
+                } finally {
+                    writer.close();
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean next(RoadRecord road) {
+        while (true) {
+            if (replay != null) {
+                if (replay.next(road)) {
+                    return true;
+                }
+                replay.close();
+                replay = null;
+            }
+
+            if (++current >= spools.size()) {
+                return false;
+            }
+
+            awaitFetch(current);
+            replay = spools.get(current).replay();
+        }
+    }
+
+    private void awaitFetch(int partition) {
+        if (partition >= fetches.size()) {
+            return;
+        }
+
+        try {
+            fetches.get(partition).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utils.asUnchecked(e);
+        } catch (ExecutionException e) {
+            throw Utils.asUnchecked(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (replay != null) {
+            replay.close();
+            replay = null;
+        }
+
+        if (executor != null && !executor.isTerminated()) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -10,28 +10,42 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.MultiLineString;
 import java.io.IOException;
+import java.sql.Connection;
 import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.visitor.MaxVisitor;
+import org.geotools.feature.visitor.MinVisitor;
+import org.geotools.jdbc.JDBCDataStore;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class PostgisReader implements DataReader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PostgisReader.class);
 
+    protected static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
     private final GraphStorage graphStorage;
     private final NodeAccess nodeAccess;
     protected final Graph graph;
     protected EncodingManager encodingManager;
+    protected final ImportMetrics metrics = new ImportMetrics();
 
     private Map<String, String> postgisParams;
 
@@ -49,10 +63,59 @@ public abstract class PostgisReader implements DataReader {
     @Override
     public void readGraph() {
         graphStorage.create(1000);
-        processJunctions();
-        processRoads();
-        processRestrictions();
+        try {
+            Set<String> restored = restoreCheckpoint();
+            runPhase("junctions", this::processJunctions, restored);
+            runPhase("roads", this::processRoads, restored);
+            runPhase("restrictions", this::processRestrictions, restored);
+        } catch (RuntimeException | Error e) {
+            abortReading();
+            throw e;
+        }
         finishReading();
+        deleteCheckpoint();
+    }
+
+    private void runPhase(String name, Runnable task, Set<String> restored) {
+        if (restored.contains(name)) {
+            LOGGER.info("Phase " + name + " is restored from the checkpoint");
+            return;
+        }
+        metrics.runPhase(name, task);
+        saveCheckpoint(name);
+    }
+
+    /**
+     * Restores the state of the phases an interrupted import completed
+     *
+     * @return the names of the restored phases, they are not run again
+     */
+    Set<String> restoreCheckpoint() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Called after each completed phase of readGraph
+     */
+    void saveCheckpoint(String phase) {
+    }
+
+    /**
+     * Called after the import finished
+     */
+    void deleteCheckpoint() {
+    }
+
+    Map<String, String> getPostgisParams() {
+        return postgisParams;
+    }
+
+    public ImportMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void addMetricsListener(ImportMetrics.Listener listener) {
+        metrics.addListener(listener);
     }
 
     abstract void processJunctions();
@@ -66,6 +129,13 @@ public abstract class PostgisReader implements DataReader {
      */
     protected abstract void finishReading();
 
+    /**
+     * Called instead of finishReading if a phase failed, stops the threads
+     * the import started
+     */
+    void abortReading() {
+    }
+
     protected FeatureIterator<SimpleFeature> getFeatureIterator(
             DataStore dataStore, String tableName) {
 
@@ -90,6 +160,88 @@ public abstract class PostgisReader implements DataReader {
         }
     }
 
+    /**
+     * Same as {@link #getFeatureIterator(DataStore, String)}, but the database
+     * drops the rows not matching the filter and returns only the given
+     * properties.
+     */
+    protected FeatureIterator<SimpleFeature> getFeatureIterator(
+            DataStore dataStore, String tableName, Filter filter, String[] properties) {
+
+        if (dataStore == null) {
+            throw new IllegalArgumentException("DataStore cannot be null for getFeatureIterator");
+        }
+
+        LOGGER.info("Getting the feature iterator for " + tableName + " where " + filter);
+
+        try {
+            FeatureSource<SimpleFeatureType, SimpleFeature> source
+                    = dataStore.getFeatureSource(tableName);
+
+            Filter combined = FF.and(getFilter(source), filter);
+            Query query = properties == null
+                    ? new Query(tableName, combined)
+                    : new Query(tableName, combined, properties);
+            FeatureCollection<SimpleFeatureType, SimpleFeature> collection = source.getFeatures(query);
+
+            return collection.features();
+
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Asks the database for the smallest and the largest value of a numeric
+     * column, honouring {@link #getFilter(FeatureSource)}. Values of a text
+     * column are converted like the osm_id of a row, but they are the
+     * smallest and largest text, see {@link #isNumeric}.
+     *
+     * @return {min, max} or null if there are no rows
+     */
+    protected long[] getRange(DataStore dataStore, String tableName, String property) {
+        try {
+            FeatureSource<SimpleFeatureType, SimpleFeature> source
+                    = dataStore.getFeatureSource(tableName);
+            FeatureCollection<SimpleFeatureType, SimpleFeature> collection = source.getFeatures(getFilter(source));
+
+            MinVisitor min = new MinVisitor(property);
+            MaxVisitor max = new MaxVisitor(property);
+            collection.accepts(min, null);
+            collection.accepts(max, null);
+
+            Object minValue = min.getResult().getValue();
+            Object maxValue = max.getResult().getValue();
+            if (minValue == null || maxValue == null) {
+                return null;
+            }
+            return new long[]{toLong(minValue), toLong(maxValue)};
+
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * @return true if the column has a numeric type, so ranges of it can be
+     * compared with numbers
+     */
+    protected boolean isNumeric(DataStore dataStore, String tableName, String property) {
+        try {
+            AttributeDescriptor descriptor = dataStore.getSchema(tableName).getDescriptor(property);
+            return descriptor != null && Number.class.isAssignableFrom(descriptor.getType().getBinding());
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * Converts an id read from the database, numeric or text
+     */
+    static long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+    }
+
     /**
      * Filters can help a lot when you need to limit the results returned from
      * PostGIS.
@@ -110,9 +262,17 @@ public abstract class PostgisReader implements DataReader {
     }
 
     protected DataStore openPostGisStore() {
+        return openPostGisStore(this.postgisParams);
+    }
+
+    /**
+     * Opens a data store without a graph, e.g. to check the source before a
+     * graph is loaded
+     */
+    static DataStore openPostGisStore(Map<String, String> postgisParams) {
         try {
-            LOGGER.info("Opening DB connection to " + this.postgisParams.get("dbtype") + " " + this.postgisParams.get("host") + ":" + this.postgisParams.get("port") + " to database " + this.postgisParams.get("database") + " schema " + this.postgisParams.get("schema"));
-            DataStore ds = DataStoreFinder.getDataStore(this.postgisParams);
+            LOGGER.info("Opening DB connection to " + postgisParams.get("dbtype") + " " + postgisParams.get("host") + ":" + postgisParams.get("port") + " to database " + postgisParams.get("database") + " schema " + postgisParams.get("schema"));
+            DataStore ds = DataStoreFinder.getDataStore(postgisParams);
             if (ds == null) {
                 throw new IllegalArgumentException("Error Connecting to Database ");
             }
@@ -122,6 +282,73 @@ public abstract class PostgisReader implements DataReader {
         }
     }
 
+    /**
+     * Borrows a connection of the data store for plain SQL queries. Closing it
+     * returns it to the pool of the data store.
+     */
+    protected Connection getConnection(DataStore dataStore) {
+        return getJdbcConnection(dataStore);
+    }
+
+    static Connection getJdbcConnection(DataStore dataStore) {
+        if (!(dataStore instanceof JDBCDataStore)) {
+            throw new IllegalArgumentException("Plain SQL queries need a JDBC data store, got " + dataStore);
+        }
+
+        try {
+            return ((JDBCDataStore) dataStore).getConnection(Transaction.AUTO_COMMIT);
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * @return the quoted name of the table including the configured schema
+     */
+    protected String getQualifiedName(String tableName) {
+        return getQualifiedName(this.postgisParams, tableName);
+    }
+
+    static String getQualifiedName(Map<String, String> postgisParams, String tableName) {
+        String schema = postgisParams.get("schema");
+        if (schema == null || schema.isEmpty()) {
+            return Utils.quoteIdentifier(tableName);
+        }
+        return Utils.quoteIdentifier(schema) + "." + Utils.quoteIdentifier(tableName);
+    }
+
+    /**
+     * @return the quoted name of the geometry column of the table
+     */
+    protected String getGeometryColumn(DataStore dataStore, String tableName) {
+        return findGeometryColumn(dataStore, tableName);
+    }
+
+    static String findGeometryColumn(DataStore dataStore, String tableName) {
+        try {
+            SimpleFeatureType schema = dataStore.getSchema(tableName);
+            if (schema.getGeometryDescriptor() == null) {
+                throw new IllegalArgumentException("No geometry column in " + tableName);
+            }
+            return Utils.quoteIdentifier(schema.getGeometryDescriptor().getLocalName());
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    /**
+     * The SQL counterpart of {@link #getFilter(FeatureSource)} for the passes
+     * that query PostGIS with plain SQL instead of GeoTools. The condition is
+     * added to their WHERE clause as is, table columns can be used unqualified.
+     * <p>
+     * By default, all rows are returned.
+     *
+     * @return a boolean SQL expression or null
+     */
+    protected String getSqlFilter() {
+        return null;
+    }
+
     /**
      * This method can be used to filter features.One way to use it is to filter
      * for features withing a certain BBox
@@ -175,6 +402,21 @@ public abstract class PostgisReader implements DataReader {
     }
 
     protected void saveTowerPosition(int nodeId, Coordinate point) {
-        nodeAccess.setNode(nodeId, lat(point), lng(point));
+        saveTowerPosition(nodeId, lat(point), lng(point));
+    }
+
+    /**
+     * In a 3D graph the node gets the elevation 0 until it is known
+     */
+    protected void saveTowerPosition(int nodeId, double lat, double lon) {
+        if (nodeAccess.is3D()) {
+            nodeAccess.setNode(nodeId, lat, lon, 0);
+        } else {
+            nodeAccess.setNode(nodeId, lat, lon);
+        }
+    }
+
+    protected void saveTowerPosition(int nodeId, double lat, double lon, double ele) {
+        nodeAccess.setNode(nodeId, lat, lon, ele);
     }
 }
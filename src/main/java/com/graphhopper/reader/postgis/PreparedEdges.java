@@ -0,0 +1,102 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.reader.ReaderWay;
+import com.graphhopper.storage.IntsRef;
+import java.util.Arrays;
+
+/**
+ * Edges that are computed but not yet written to the graph, kept in parallel
+ * arrays that grow as needed and are reused, so no object is created per
+ * edge.
+ * <p>
+ * The points stay in the road record, an edge only refers to the range
+ * between its two towers. The record must not be refilled before its edges
+ * are written.
+ */
+final class PreparedEdges {
+
+    private int size;
+    private int[] fromTowers = new int[64];
+    private int[] toTowers = new int[64];
+    private double[] distances = new double[64];
+    private int[] firstPoints = new int[64];
+    private int[] lastPoints = new int[64];
+    private RoadRecord[] roads = new RoadRecord[64];
+    private ReaderWay[] ways = new ReaderWay[64];
+    private IntsRef[] flags = new IntsRef[64];
+
+    /**
+     * @param first index of the point of the start tower in the road
+     * @param last index of the point of the end tower in the road
+     * @param edgeFlags null if no encoder accepts the road
+     */
+    void add(int fromTower, int toTower, double distance, RoadRecord road, int first, int last,
+            ReaderWay way, IntsRef edgeFlags) {
+        if (size == fromTowers.length) {
+            int capacity = size * 2;
+            fromTowers = Arrays.copyOf(fromTowers, capacity);
+            toTowers = Arrays.copyOf(toTowers, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+            firstPoints = Arrays.copyOf(firstPoints, capacity);
+            lastPoints = Arrays.copyOf(lastPoints, capacity);
+            roads = Arrays.copyOf(roads, capacity);
+            ways = Arrays.copyOf(ways, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        fromTowers[size] = fromTower;
+        toTowers[size] = toTower;
+        distances[size] = distance;
+        firstPoints[size] = first;
+        lastPoints[size] = last;
+        roads[size] = road;
+        ways[size] = way;
+        flags[size] = edgeFlags;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getFromTower(int edge) {
+        return fromTowers[edge];
+    }
+
+    int getToTower(int edge) {
+        return toTowers[edge];
+    }
+
+    double getDistance(int edge) {
+        return distances[edge];
+    }
+
+    int getFirstPoint(int edge) {
+        return firstPoints[edge];
+    }
+
+    int getLastPoint(int edge) {
+        return lastPoints[edge];
+    }
+
+    RoadRecord getRoad(int edge) {
+        return roads[edge];
+    }
+
+    ReaderWay getWay(int edge) {
+        return ways[edge];
+    }
+
+    IntsRef getFlags(int edge) {
+        return flags[edge];
+    }
+
+    /**
+     * Forgets the edges and the references to the roads, ways and flags
+     */
+    void clear() {
+        Arrays.fill(roads, 0, size, null);
+        Arrays.fill(ways, 0, size, null);
+        Arrays.fill(flags, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,166 @@
+package com.graphhopper.reader.postgis;
+
+import com.carrotsearch.hppc.LongDoubleHashMap;
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import org.geotools.data.DataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Samples an elevation raster stored in PostGIS, e.g. loaded with raster2pgsql
+ * into a table with a rast column. The raster has to be in EPSG:4326 and
+ * tiled on one grid.
+ * <p>
+ * The value of a point is the value of the raster cell it falls in, like
+ * ST_Value without resampling, so the values are cached per cell. Cells
+ * missing in the cache are sampled in the database in bulk, one query per
+ * {@link #QUERY_SIZE} cells. Points outside the raster or on no data get 0.
+ */
+final class RasterElevation implements ElevationCursor.Sampler, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RasterElevation.class);
+
+    static final int QUERY_SIZE = 10_000;
+    private static final int SRID = 4326;
+
+    private final OSMPostgisReader reader;
+    private final String table;
+    private final DataStore dataStore;
+    private final int cacheSize;
+    private final LongDoubleHashMap cells;
+
+    private final double originX;
+    private final double originY;
+    private final double scaleX;
+    private final double scaleY;
+
+    private long[] missing = new long[1024];
+    private int missingCount;
+    private long queries;
+
+    /**
+     * @param table raster table with a rast column
+     * @param cacheSize number of cells to keep, the cache is emptied when it
+     * is full
+     */
+    RasterElevation(OSMPostgisReader reader, String table, int cacheSize) {
+        this.reader = reader;
+        this.table = reader.getQualifiedName(table);
+        this.cacheSize = Math.max(QUERY_SIZE, cacheSize);
+        this.cells = new LongDoubleHashMap(Math.min(this.cacheSize, 1 << 20));
+        this.dataStore = reader.openPostGisStore();
+        String sql = "SELECT ST_UpperLeftX(rast), ST_UpperLeftY(rast), ST_ScaleX(rast), ST_ScaleY(rast), ST_SRID(rast)"
+                + " FROM " + this.table + " LIMIT 1";
+        try (SqlCursor cursor = new SqlCursor(reader.getConnection(dataStore), sql)) {
+            ResultSet rs = cursor.getResultSet();
+            if (!rs.next()) {
+                throw new IllegalArgumentException("Elevation raster " + table + " is empty");
+            }
+            if (rs.getInt(5) != SRID) {
+                throw new IllegalArgumentException("Elevation raster " + table + " has SRID " + rs.getInt(5)
+                        + ", only " + SRID + " is supported");
+            }
+
+            this.originX = rs.getDouble(1);
+            this.originY = rs.getDouble(2);
+            this.scaleX = rs.getDouble(3);
+            this.scaleY = rs.getDouble(4);
+        } catch (SQLException | RuntimeException e) {
+            dataStore.dispose();
+            throw Utils.asUnchecked(e);
+        }
+        LOGGER.info("Sampling elevation from " + table + ", cell size " + scaleX + " x " + Math.abs(scaleY));
+    }
+
+    @Override
+    public void sample(double[] lats, double[] lons, double[] eles, int count) {
+        if (cells.size() + count > cacheSize) {
+            cells.clear();
+        }
+
+        missingCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (Double.isNaN(eles[i])) {
+                long cell = getCell(lats[i], lons[i]);
+                if (!cells.containsKey(cell)) {
+                    addMissing(cell);
+                }
+            }
+        }
+
+        for (int from = 0; from < missingCount; from += QUERY_SIZE) {
+            query(from, Math.min(missingCount, from + QUERY_SIZE));
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (Double.isNaN(eles[i])) {
+                eles[i] = cells.get(getCell(lats[i], lons[i]));
+            }
+        }
+    }
+
+    private long getCell(double lat, double lon) {
+        int column = (int) Math.floor((lon - originX) / scaleX);
+        int row = (int) Math.floor((lat - originY) / scaleY);
+        return (long) column << 32 | row & 0xFFFFFFFFL;
+    }
+
+    private void addMissing(long cell) {
+        if (missingCount == missing.length) {
+            missing = Arrays.copyOf(missing, missingCount * 2);
+        }
+        missing[missingCount++] = cell;
+        // 0 until the database returns a value, also marks the cell as
+        // requested for the following points
+        cells.put(cell, 0);
+    }
+
+    /**
+     * Samples the centres of the cells, a point on the border of two tiles
+     * may come twice
+     */
+    private void query(int from, int to) {
+        StringBuilder xs = new StringBuilder("'{");
+        StringBuilder ys = new StringBuilder("'{");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                xs.append(',');
+                ys.append(',');
+            }
+            long cell = missing[i];
+            xs.append(originX + ((int) (cell >> 32) + 0.5) * scaleX);
+            ys.append(originY + ((int) cell + 0.5) * scaleY);
+        }
+        xs.append("}'::float8[]");
+        ys.append("}'::float8[]");
+
+        String sql = "SELECT p.i, ST_Value(r.rast, 1, p.geom)"
+                + " FROM (SELECT u.i, ST_SetSRID(ST_MakePoint(u.x, u.y), " + SRID + ") AS geom"
+                + " FROM unnest(" + xs + ", " + ys + ") WITH ORDINALITY AS u(x, y, i)) p"
+                + " JOIN " + table + " r ON ST_Intersects(r.rast, p.geom)";
+        try (SqlCursor cursor = new SqlCursor(reader.getConnection(dataStore), sql)) {
+            ResultSet rs = cursor.getResultSet();
+            while (rs.next()) {
+                double ele = rs.getDouble(2);
+                if (!rs.wasNull()) {
+                    cells.put(missing[from + rs.getInt(1) - 1], ele);
+                }
+            }
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        }
+
+        if (++queries % 100 == 0) {
+            LOGGER.info(nf(queries) + " elevation queries, " + nf(cells.size()) + " cells cached");
+        }
+    }
+
+    @Override
+    public void close() {
+        dataStore.dispose();
+    }
+}
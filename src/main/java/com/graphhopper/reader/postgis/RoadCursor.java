@@ -0,0 +1,19 @@
+package com.graphhopper.reader.postgis;
+
+import java.io.Closeable;
+
+/**
+ * One pass over the road rows.
+ */
+interface RoadCursor extends Closeable {
+
+    /**
+     * Fills the record with the next accepted road.
+     *
+     * @return false if there are no more roads
+     */
+    boolean next(RoadRecord road);
+
+    @Override
+    void close();
+}
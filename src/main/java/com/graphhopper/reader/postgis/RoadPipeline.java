@@ -0,0 +1,160 @@
+package com.graphhopper.reader.postgis;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a pass over the roads in three stages that overlap in time.
+ * <ol>
+ * <li>A reader thread fills batches of reusable records from the cursor.</li>
+ * <li>Worker threads prepare each road of a batch into the buffer of the
+ * batch with {@link Handler#prepare}.</li>
+ * <li>The calling thread hands the buffers to {@link Handler#write} in the
+ * order of the source, so whatever it writes does not depend on timing.</li>
+ * </ol>
+ * Only a fixed number of batches exists, so a slow stage makes the stages
+ * before it wait instead of filling the memory. Records and buffers are
+ * reused for the next batches.
+ */
+class RoadPipeline<B> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoadPipeline.class);
+
+    static final int BATCH_SIZE = 512;
+
+    interface Handler<B> {
+
+        B createBuffer();
+
+        /**
+         * Called on the worker threads, must not change shared state. The
+         * record stays unchanged until the buffer is written.
+         */
+        void prepare(RoadRecord road, B buffer);
+
+        /**
+         * Called on the thread that runs the pipeline, in source order. Has to
+         * empty the buffer.
+         */
+        void write(B buffer);
+    }
+
+    private final int threads;
+    private final int tagCount;
+
+    RoadPipeline(int threads, int tagCount) {
+        this.threads = Math.max(1, threads);
+        this.tagCount = tagCount;
+    }
+
+    /**
+     * Runs the pass and closes the cursor.
+     */
+    void run(final RoadCursor roads, final Handler<B> handler) {
+        int batchCount = threads * 2 + 1;
+        final BlockingQueue<Batch<B>> free = new ArrayBlockingQueue<>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            free.add(new Batch<>(tagCount, handler.createBuffer()));
+        }
+        // one more slot for the end marker
+        final BlockingQueue<Future<Batch<B>>> pending = new ArrayBlockingQueue<>(batchCount + 1);
+
+        LOGGER.info("Processing roads with " + threads + " worker threads");
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> reading = reader.submit(() -> {
+                read(roads, handler, free, pending, workers);
+                return null;
+            });
+
+            while (true) {
+                Batch<B> batch = pending.take().get();
+                if (batch == null) {
+                    break;
+                }
+
+                handler.write(batch.buffer);
+                free.put(batch);
+            }
+            reading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Utils.asUnchecked(e);
+        } catch (ExecutionException e) {
+            throw Utils.asUnchecked(e.getCause());
+        } finally {
+            reader.shutdownNow();
+            workers.shutdownNow();
+            awaitTermination(reader);
+        }
+    }
+
+    /**
+     * Reader stage. A null batch marks the end, a failure is passed on as a
+     * failed future so the writer sees it in order.
+     */
+    private void read(RoadCursor roads, final Handler<B> handler, BlockingQueue<Batch<B>> free,
+            BlockingQueue<Future<Batch<B>>> pending, ExecutorService workers) throws InterruptedException {
+        try {
+            while (true) {
+                final Batch<B> batch = free.take();
+                int size = 0;
+                while (size < BATCH_SIZE && roads.next(batch.roads[size])) {
+                    size++;
+                }
+
+                if (size > 0) {
+                    final int batchSize = size;
+                    pending.put(workers.submit(() -> {
+                        for (int i = 0; i < batchSize; i++) {
+                            handler.prepare(batch.roads[i], batch.buffer);
+                        }
+                        return batch;
+                    }));
+                }
+                if (size < BATCH_SIZE) {
+                    break;
+                }
+            }
+            pending.put(CompletableFuture.completedFuture(null));
+        } catch (RuntimeException e) {
+            CompletableFuture<Batch<B>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            pending.put(failed);
+        } finally {
+            roads.close();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.warn("Road reader thread did not stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Batch<B> {
+
+        final RoadRecord[] roads = new RoadRecord[BATCH_SIZE];
+        final B buffer;
+
+        Batch(int tagCount, B buffer) {
+            for (int i = 0; i < roads.length; i++) {
+                roads[i] = new RoadRecord(tagCount);
+            }
+            this.buffer = buffer;
+        }
+    }
+}
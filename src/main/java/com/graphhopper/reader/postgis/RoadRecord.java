@@ -0,0 +1,131 @@
+package com.graphhopper.reader.postgis;
+
+import java.util.Arrays;
+
+/**
+ * The part of a road row the import passes need. Cursors fill one instance in
+ * place for every row, so a record must not be kept after the next call.
+ * <p>
+ * The rounded coordinates of all line strings of the row are kept in
+ * primitive buffers that grow as needed and are reused for the next row.
+ */
+final class RoadRecord {
+
+    long osmId;
+    String fclass;
+    String maxSpeed;
+    String oneway;
+    String restriction;
+    long restrictionTo;
+    /**
+     * osm_id of the via way of the restriction, 0 if the via is a node
+     */
+    long restrictionVia;
+
+    /**
+     * Values of the tags listed in tags_to_copy, in the same order
+     */
+    final String[] tags;
+
+    double[] lats = new double[64];
+    double[] lons = new double[64];
+    /**
+     * Elevation of the points, NaN for 2D geometries
+     */
+    double[] eles = new double[64];
+    private int pointCount;
+
+    private int[] partEnds = new int[4];
+    private int partCount;
+
+    RoadRecord(int tagCount) {
+        this.tags = new String[tagCount];
+    }
+
+    void clear() {
+        osmId = 0;
+        fclass = null;
+        maxSpeed = null;
+        oneway = null;
+        restriction = null;
+        restrictionTo = 0;
+        restrictionVia = 0;
+        Arrays.fill(tags, null);
+        pointCount = 0;
+        partCount = 0;
+    }
+
+    /**
+     * Removes the points, the attributes are kept
+     */
+    void clearPoints() {
+        pointCount = 0;
+        partCount = 0;
+    }
+
+    void copyFrom(RoadRecord other) {
+        osmId = other.osmId;
+        fclass = other.fclass;
+        maxSpeed = other.maxSpeed;
+        oneway = other.oneway;
+        restriction = other.restriction;
+        restrictionTo = other.restrictionTo;
+        restrictionVia = other.restrictionVia;
+        System.arraycopy(other.tags, 0, tags, 0, tags.length);
+
+        pointCount = 0;
+        partCount = 0;
+        for (int part = 0; part < other.partCount; part++) {
+            for (int i = other.getPartStart(part); i < other.getPartEnd(part); i++) {
+                addPoint(other.lats[i], other.lons[i], other.eles[i]);
+            }
+            endPart();
+        }
+    }
+
+    void addPoint(double lat, double lon, double ele) {
+        if (pointCount == lats.length) {
+            int capacity = pointCount * 2;
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            eles = Arrays.copyOf(eles, capacity);
+        }
+        lats[pointCount] = lat;
+        lons[pointCount] = lon;
+        eles[pointCount] = ele;
+        pointCount++;
+    }
+
+    /**
+     * Closes the current line string, the points added since the last call
+     * belong to it.
+     */
+    void endPart() {
+        if (partCount == partEnds.length) {
+            partEnds = Arrays.copyOf(partEnds, partCount * 2);
+        }
+        partEnds[partCount++] = pointCount;
+    }
+
+    int getPartCount() {
+        return partCount;
+    }
+
+    /**
+     * @return index of the first point of the part
+     */
+    int getPartStart(int part) {
+        return part == 0 ? 0 : partEnds[part - 1];
+    }
+
+    /**
+     * @return index after the last point of the part
+     */
+    int getPartEnd(int part) {
+        return partEnds[part];
+    }
+
+    int getPointCount() {
+        return pointCount;
+    }
+}
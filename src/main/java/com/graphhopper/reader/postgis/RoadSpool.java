@@ -0,0 +1,316 @@
+package com.graphhopper.reader.postgis;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.graphhopper.util.Helper.nf;
+
+/**
+ * Local binary copy of the road rows. The first pass writes every row it reads
+ * from PostGIS, the later passes replay the file through memory-mapped reads
+ * instead of querying the database again.
+ * <p>
+ * Coordinates are stored as fixed point integers. They are already rounded to
+ * 6 decimal places, so nothing is lost.
+ */
+class RoadSpool implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoadSpool.class);
+
+    /**
+     * Version of the record layout, a kept spool of another version is not
+     * replayed
+     */
+    static final int FORMAT_VERSION = 2;
+
+    private static final int WINDOW_SIZE = 64 << 20;
+    private static final double FACTOR = 1e6;
+
+    private final File file;
+    private final boolean keep;
+    private boolean complete;
+
+    RoadSpool(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param keep true if the spool has to survive the process, e.g. for the
+     * import checkpoint. It is written under a temporary name and renamed when
+     * it is complete, so an existing file is a complete spool.
+     */
+    RoadSpool(File file, boolean keep) {
+        this.file = file;
+        this.keep = keep;
+        if (keep) {
+            this.complete = file.exists();
+        } else {
+            this.file.deleteOnExit();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if a pass wrote the whole source to the spool
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Wraps the source so every road read from it is also written to the
+     * spool. The spool is complete only if the returned cursor was read to the
+     * end before it was closed.
+     */
+    RoadCursor record(RoadCursor source) {
+        try {
+            return new Writer(source);
+        } catch (IOException e) {
+            source.close();
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    RoadCursor replay() {
+        if (!complete) {
+            throw new IllegalStateException("Road spool " + file + " is not complete");
+        }
+
+        try {
+            return new Replay();
+        } catch (IOException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        complete = false;
+        for (File spoolFile : new File[]{file, getWriteFile()}) {
+            if (spoolFile.exists() && !spoolFile.delete()) {
+                LOGGER.warn("Cannot delete road spool " + spoolFile);
+            }
+        }
+    }
+
+    private File getWriteFile() {
+        return keep ? new File(file.getPath() + ".part") : file;
+    }
+
+    private static int toFixed(double value) {
+        return (int) Math.round(value * FACTOR);
+    }
+
+    private class Writer implements RoadCursor {
+
+        private final RoadCursor source;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(1024);
+        private final DataOutputStream record = new DataOutputStream(recordBuffer);
+        private boolean exhausted;
+        private long rows;
+
+        Writer(RoadCursor source) throws IOException {
+            this.source = source;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getWriteFile()), 1 << 16));
+        }
+
+        @Override
+        public boolean next(RoadRecord road) {
+            if (!source.next(road)) {
+                exhausted = true;
+                return false;
+            }
+
+            try {
+                write(road);
+            } catch (IOException e) {
+                throw Utils.asUnchecked(e);
+            }
+            rows++;
+            return true;
+        }
+
+        private void write(RoadRecord road) throws IOException {
+            recordBuffer.reset();
+            record.writeLong(road.osmId);
+            writeString(road.fclass);
+            writeString(road.maxSpeed);
+            writeString(road.oneway);
+            writeString(road.restriction);
+            record.writeLong(road.restrictionTo);
+            record.writeLong(road.restrictionVia);
+            for (String tag : road.tags) {
+                writeString(tag);
+            }
+
+            record.writeInt(road.getPartCount());
+            for (int p = 0; p < road.getPartCount(); p++) {
+                int start = road.getPartStart(p);
+                int end = road.getPartEnd(p);
+                boolean hasZ = end > start && !Double.isNaN(road.eles[start]);
+                record.writeInt(end - start);
+                record.writeBoolean(hasZ);
+                for (int i = start; i < end; i++) {
+                    record.writeInt(toFixed(road.lons[i]));
+                    record.writeInt(toFixed(road.lats[i]));
+                    if (hasZ) {
+                        record.writeDouble(road.eles[i]);
+                    }
+                }
+            }
+
+            out.writeInt(recordBuffer.size());
+            recordBuffer.writeTo(out);
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                record.writeInt(-1);
+                return;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            record.writeInt(bytes.length);
+            record.write(bytes);
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw Utils.asUnchecked(e);
+            } finally {
+                source.close();
+            }
+
+            complete = exhausted;
+            if (complete && keep) {
+                try {
+                    Files.move(getWriteFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    complete = false;
+                    throw Utils.asUnchecked(e);
+                }
+            }
+            if (complete) {
+                LOGGER.info("Spooled " + nf(rows) + " roads to " + file + ", " + nf(file.length()) + " bytes");
+            }
+        }
+    }
+
+    private class Replay implements RoadCursor {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+        private byte[] bytes = new byte[256];
+
+        Replay() throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = channel.size();
+            map(0, 0);
+        }
+
+        /**
+         * Maps the window so that it starts at the given position and holds at
+         * least minSize bytes.
+         */
+        private void map(long position, int minSize) throws IOException {
+            long length = Math.min(size - position, Math.max(WINDOW_SIZE, minSize));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            windowStart = position;
+        }
+
+        @Override
+        public boolean next(RoadRecord road) {
+            try {
+                long position = windowStart + window.position();
+                if (position >= size) {
+                    return false;
+                }
+
+                if (window.remaining() < 4) {
+                    map(position, 4);
+                }
+                int length = window.getInt();
+                if (window.remaining() < length) {
+                    map(position + 4, length);
+                }
+            } catch (IOException e) {
+                throw Utils.asUnchecked(e);
+            }
+
+            read(road);
+            return true;
+        }
+
+        private void read(RoadRecord road) {
+            road.clear();
+            road.osmId = window.getLong();
+            road.fclass = readString();
+            road.maxSpeed = readString();
+            road.oneway = readString();
+            road.restriction = readString();
+            road.restrictionTo = window.getLong();
+            road.restrictionVia = window.getLong();
+            for (int i = 0; i < road.tags.length; i++) {
+                road.tags[i] = readString();
+            }
+
+            int partCount = window.getInt();
+            for (int p = 0; p < partCount; p++) {
+                int n = window.getInt();
+                boolean hasZ = window.get() != 0;
+                for (int i = 0; i < n; i++) {
+                    double lon = window.getInt() / FACTOR;
+                    double lat = window.getInt() / FACTOR;
+                    double ele = hasZ ? window.getDouble() : Double.NaN;
+                    road.addPoint(lat, lon, ele);
+                }
+                road.endPart();
+            }
+        }
+
+        private String readString() {
+            int length = window.getInt();
+            if (length < 0) {
+                return null;
+            }
+
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            window.get(bytes, 0, length);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            window = null;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw Utils.asUnchecked(e);
+            }
+        }
+    }
+}
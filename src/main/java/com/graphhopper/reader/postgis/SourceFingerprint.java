@@ -0,0 +1,174 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.StorableProperties;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import org.geotools.data.DataStore;
+
+/**
+ * Cheap description of the roads source, stored in the graph properties by
+ * the import, so a later start can tell whether the graph is still up to date
+ * without reading the roads.
+ * <p>
+ * It has two parts. The settings are the import settings that change the
+ * graph, the roads table, the encoders and the columns of the table. A
+ * change of them needs a new import. The data are the row count, the largest
+ * osm_id, the change watermark if a change source is configured and the
+ * insert, update and delete counters of pg_stat_user_tables if the source is
+ * a table. A change of them alone can also be applied as an update. The
+ * counters are reset with the statistics of the server, which looks like a
+ * change, never the other way round.
+ * <p>
+ * The row count, the largest osm_id and the largest value of the update
+ * column cover only the rows of the import area. The counters and the last
+ * change of the changelog table cover the whole table, so an edit outside the
+ * area also counts as a change of the data.
+ */
+final class SourceFingerprint {
+
+    static final String SETTINGS_PROPERTY = "postgis.source_settings";
+    static final String DATA_PROPERTY = "postgis.source_data";
+
+    /**
+     * Settings that change how the roads are read, but not the graph
+     */
+    private static final String[] TUNING_SETTINGS = {"passwd", "single_scan", "spool_dir", "read_partitions",
+        "junctions", "junctions_run_size", "reader", "pipeline", "coordinate_index", "coordinate_index_size",
+        "flag_cache_size", "elevation_cache_size", "checkpoint", "edge_listener_batch_size",
+        "edge_listener_queue_size"};
+
+    enum Change {
+        NONE, DATA, SETTINGS
+    }
+
+    private final String settings;
+    private final String data;
+
+    private SourceFingerprint(String settings, String data) {
+        this.settings = settings;
+        this.data = data;
+    }
+
+    /**
+     * Queries the database
+     *
+     * @param table roads table or view
+     * @param encoders description of the encoders, e.g. the encoding manager
+     * @param sqlFilter condition of the rows the reader imports, null for all
+     * rows
+     */
+    static SourceFingerprint compute(Map<String, String> postgisParams, String table, Object encoders,
+            String sqlFilter) {
+        TreeMap<String, String> tmpSettings = new TreeMap<>(postgisParams);
+        for (String key : TUNING_SETTINGS) {
+            tmpSettings.remove(key);
+        }
+        StringBuilder settings = new StringBuilder(tmpSettings.toString())
+                .append(";table=").append(table)
+                .append(";encoders=").append(encoders);
+        StringBuilder data = new StringBuilder();
+
+        String qualifiedName = PostgisReader.getQualifiedName(postgisParams, table);
+        String where = sqlFilter == null ? "" : " WHERE " + sqlFilter;
+        String schema = postgisParams.get("schema");
+        DataStore dataStore = PostgisReader.openPostGisStore(postgisParams);
+        try {
+            try (SqlCursor cursor = new SqlCursor(PostgisReader.getJdbcConnection(dataStore),
+                    "SELECT string_agg(column_name || ' ' || data_type, ',' ORDER BY ordinal_position)"
+                    + " FROM information_schema.columns"
+                    + " WHERE table_schema = coalesce(nullif(?, ''), current_schema()) AND table_name = ?",
+                    schema == null ? "" : schema, table)) {
+                ResultSet rs = cursor.getResultSet();
+                settings.append(";columns=").append(rs.next() ? rs.getString(1) : null);
+            }
+
+            try (SqlCursor cursor = new SqlCursor(PostgisReader.getJdbcConnection(dataStore),
+                    "SELECT count(*), max(osm_id) FROM " + qualifiedName + where)) {
+                ResultSet rs = cursor.getResultSet();
+                if (rs.next()) {
+                    data.append("rows=").append(rs.getLong(1)).append(";max_osm_id=").append(rs.getLong(2));
+                }
+            }
+
+            String watermarkSql = getWatermarkSql(postgisParams, qualifiedName, where);
+            if (watermarkSql != null) {
+                try (SqlCursor cursor = new SqlCursor(PostgisReader.getJdbcConnection(dataStore), watermarkSql)) {
+                    ResultSet rs = cursor.getResultSet();
+                    data.append(";watermark=").append(rs.next() ? rs.getString(1) : null);
+                }
+            }
+
+            try (SqlCursor cursor = new SqlCursor(PostgisReader.getJdbcConnection(dataStore),
+                    "SELECT n_tup_ins, n_tup_upd, n_tup_del FROM pg_stat_user_tables WHERE relid = to_regclass(?)",
+                    qualifiedName)) {
+                ResultSet rs = cursor.getResultSet();
+                if (rs.next()) {
+                    data.append(";inserted=").append(rs.getLong(1))
+                            .append(";updated=").append(rs.getLong(2))
+                            .append(";deleted=").append(rs.getLong(3));
+                }
+            }
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            dataStore.dispose();
+        }
+        return new SourceFingerprint(settings.toString(), data.toString());
+    }
+
+    /**
+     * The same watermark as the updates use: the last changed_at of the
+     * changelog table or the largest value of the update column
+     */
+    private static String getWatermarkSql(Map<String, String> postgisParams, String qualifiedName, String where) {
+        String changelogTable = trim(postgisParams.get("changelog_table"));
+        if (!changelogTable.isEmpty()) {
+            return "SELECT max(changed_at)::text FROM " + PostgisReader.getQualifiedName(postgisParams, changelogTable);
+        }
+
+        String updateColumn = trim(postgisParams.get("update_column"));
+        if (!updateColumn.isEmpty()) {
+            return "SELECT max(" + Utils.quoteIdentifier(updateColumn) + ")::text FROM " + qualifiedName + where;
+        }
+        return null;
+    }
+
+    private static String trim(String value) {
+        return value == null ? "" : value.trim();
+    }
+
+    /**
+     * @return the fingerprint stored with a graph or null if the graph has
+     * none
+     */
+    static SourceFingerprint load(StorableProperties properties) {
+        String settings = properties.get(SETTINGS_PROPERTY);
+        String data = properties.get(DATA_PROPERTY);
+        if (settings == null || settings.isEmpty() || data == null) {
+            return null;
+        }
+        return new SourceFingerprint(settings, data);
+    }
+
+    void store(StorableProperties properties) {
+        properties.put(SETTINGS_PROPERTY, settings);
+        properties.put(DATA_PROPERTY, data);
+    }
+
+    /**
+     * @param stored fingerprint of the graph, null counts as changed settings
+     */
+    Change compareTo(SourceFingerprint stored) {
+        if (stored == null || !settings.equals(stored.settings)) {
+            return Change.SETTINGS;
+        }
+        return data.equals(stored.data) ? Change.NONE : Change.DATA;
+    }
+
+    @Override
+    public String toString() {
+        return settings + "|" + data;
+    }
+}
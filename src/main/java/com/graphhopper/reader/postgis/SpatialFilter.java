@@ -0,0 +1,176 @@
+package com.graphhopper.reader.postgis;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import org.geotools.data.DataStore;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the import to the roads intersecting an area, given as a bounding
+ * box, a WKT polygon or a region of a regions table. If several are given the
+ * area is their intersection. Coordinates are in EPSG:4326 like the roads.
+ * <p>
+ * The area becomes an ST_Intersects condition of the queries, so the rows
+ * outside of it are not transferred at all. Roads crossing the border are
+ * imported completely.
+ */
+final class SpatialFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpatialFilter.class);
+
+    private static final int SRID = 4326;
+
+    private final Geometry area;
+    private final String geometryColumn;
+
+    private SpatialFilter(Geometry area, String geometryColumn) {
+        this.area = area;
+        this.geometryColumn = geometryColumn;
+    }
+
+    /**
+     * Reads the area from the settings bbox, polygon, regions_table,
+     * region_column and region.
+     *
+     * @param roadsTable table whose geometry column is used in SQL conditions
+     * @return null if no area is configured
+     */
+    static SpatialFilter create(Map<String, String> postgisParams, String roadsTable) {
+        String bbox = getParam(postgisParams, "bbox");
+        String polygon = getParam(postgisParams, "polygon");
+        String regionsTable = getParam(postgisParams, "regions_table");
+        String regionColumn = getParam(postgisParams, "region_column");
+        String region = getParam(postgisParams, "region");
+        if (bbox.isEmpty() && polygon.isEmpty() && regionsTable.isEmpty() && region.isEmpty()) {
+            return null;
+        }
+        return create(postgisParams, bbox, polygon, regionsTable, regionColumn.isEmpty() ? "name" : regionColumn,
+                region, roadsTable);
+    }
+
+    /**
+     * @param bbox minLon,minLat,maxLon,maxLat or empty
+     * @param polygon WKT or empty
+     * @param regionsTable table with a geometry column and the regionColumn,
+     * empty if no region is used
+     * @param region value of the regionColumn of the rows that make the
+     * region
+     * @param roadsTable table whose geometry column is used in SQL conditions
+     * @return null if no area is configured
+     */
+    static SpatialFilter create(Map<String, String> postgisParams, String bbox, String polygon,
+            String regionsTable, String regionColumn, String region, String roadsTable) {
+        Geometry area = null;
+        if (!bbox.isEmpty()) {
+            area = parseBBox(bbox);
+        }
+        if (!polygon.isEmpty()) {
+            area = intersect(area, parseWkt(polygon));
+        }
+        if (regionsTable.isEmpty() != region.isEmpty()) {
+            throw new IllegalArgumentException("regions_table and region must be used together");
+        }
+
+        DataStore dataStore = null;
+        try {
+            if (!region.isEmpty()) {
+                dataStore = PostgisReader.openPostGisStore(postgisParams);
+                area = intersect(area, queryRegion(postgisParams, dataStore, regionsTable, regionColumn, region));
+            }
+            if (area == null) {
+                return null;
+            }
+            if (area.isEmpty()) {
+                throw new IllegalArgumentException("The import area is empty");
+            }
+
+            if (dataStore == null) {
+                dataStore = PostgisReader.openPostGisStore(postgisParams);
+            }
+            LOGGER.info("Importing the roads intersecting " + area.getEnvelopeInternal());
+            return new SpatialFilter(area, PostgisReader.findGeometryColumn(dataStore, roadsTable));
+        } finally {
+            if (dataStore != null) {
+                dataStore.dispose();
+            }
+        }
+    }
+
+    private static Geometry parseBBox(String bbox) {
+        String[] values = bbox.split(",");
+        if (values.length != 4) {
+            throw new IllegalArgumentException("bbox must be minLon,minLat,maxLon,maxLat: " + bbox);
+        }
+
+        double minLon = Double.parseDouble(values[0].trim());
+        double minLat = Double.parseDouble(values[1].trim());
+        double maxLon = Double.parseDouble(values[2].trim());
+        double maxLat = Double.parseDouble(values[3].trim());
+        return new GeometryFactory().toGeometry(new Envelope(minLon, maxLon, minLat, maxLat));
+    }
+
+    private static Geometry parseWkt(String wkt) {
+        try {
+            return new WKTReader().read(wkt);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Cannot parse the polygon " + wkt, e);
+        }
+    }
+
+    private static String getParam(Map<String, String> postgisParams, String key) {
+        String value = postgisParams.get(key);
+        return value == null ? "" : value.trim();
+    }
+
+    private static Geometry queryRegion(Map<String, String> postgisParams, DataStore dataStore, String regionsTable,
+            String regionColumn, String region) {
+        String sql = "SELECT ST_AsText(ST_Union(" + PostgisReader.findGeometryColumn(dataStore, regionsTable) + "))"
+                + " FROM " + PostgisReader.getQualifiedName(postgisParams, regionsTable)
+                + " WHERE " + Utils.quoteIdentifier(regionColumn) + " = ?";
+        try (SqlCursor cursor = new SqlCursor(PostgisReader.getJdbcConnection(dataStore), sql, region)) {
+            ResultSet rs = cursor.getResultSet();
+            String wkt = rs.next() ? rs.getString(1) : null;
+            if (wkt == null) {
+                throw new IllegalArgumentException("No region " + region + " in " + regionsTable);
+            }
+            return parseWkt(wkt);
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+
+    private static Geometry intersect(Geometry area, Geometry other) {
+        return area == null ? other : area.intersection(other);
+    }
+
+    /**
+     * @return the condition for the GeoTools queries of a table, INCLUDE if
+     * the table has no geometry
+     */
+    Filter getFilter(SimpleFeatureType schema) {
+        GeometryDescriptor geometry = schema.getGeometryDescriptor();
+        if (geometry == null) {
+            return Filter.INCLUDE;
+        }
+        return PostgisReader.FF.intersects(
+                PostgisReader.FF.property(geometry.getLocalName()), PostgisReader.FF.literal(area));
+    }
+
+    /**
+     * @return the condition for the plain SQL queries of the roads table
+     */
+    String getSql() {
+        return "ST_Intersects(" + geometryColumn
+                + ", ST_GeomFromText(" + Utils.quoteLiteral(area.toText()) + ", " + SRID + "))";
+    }
+}
@@ -0,0 +1,78 @@
+package com.graphhopper.reader.postgis;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Streams the result of a query. The PostgreSQL driver only uses a server
+ * side cursor outside of auto-commit mode, so the connection is switched for
+ * the lifetime of the cursor and switched back on close.
+ */
+class SqlCursor implements Closeable {
+
+    static final int FETCH_SIZE = 10_000;
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+
+    SqlCursor(Connection connection, String sql, Object... params) throws SQLException {
+        this.connection = connection;
+        connection.setAutoCommit(false);
+        PreparedStatement tmpStatement = null;
+        try {
+            tmpStatement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            tmpStatement.setFetchSize(FETCH_SIZE);
+            for (int i = 0; i < params.length; i++) {
+                tmpStatement.setObject(i + 1, params[i]);
+            }
+            this.statement = tmpStatement;
+            this.resultSet = tmpStatement.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            if (tmpStatement != null) {
+                tmpStatement.close();
+            }
+            release();
+            throw e;
+        }
+    }
+
+    ResultSet getResultSet() {
+        return resultSet;
+    }
+
+    boolean next() throws SQLException {
+        return resultSet.next();
+    }
+
+    @Override
+    public void close() {
+        try {
+            try {
+                resultSet.close();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        } finally {
+            release();
+        }
+    }
+
+    private void release() {
+        try {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            throw Utils.asUnchecked(e);
+        }
+    }
+}
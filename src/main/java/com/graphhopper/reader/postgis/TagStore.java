@@ -0,0 +1,216 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.DataAccess;
+import com.graphhopper.storage.Directory;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values of the tags_to_copy columns of the edges, stored next to the graph.
+ * <p>
+ * Every distinct value is stored once: postgis_tag_values holds the UTF-8
+ * bytes of the values, postgis_tag_offsets the position of every value.
+ * postgis_edge_tags holds one int per edge and tag, the id of the value or 0
+ * if the road has none. The first values are the names of the tags. All
+ * files are memory-mapped when the graph is loaded, so a street name repeated
+ * on millions of edges costs 4 bytes per edge and no heap.
+ */
+public class TagStore implements Closeable {
+
+    private static final int VERSION = 1;
+    private static final int OFFSET_BYTES = 8;
+    private static final int NO_VALUE = 0;
+
+    private final DataAccess edgeTags;
+    private final DataAccess values;
+    private final DataAccess offsets;
+    private String[] tagNames = new String[0];
+    private int edgeCount;
+    /**
+     * Number of values including the tag names, value ids start at 1
+     */
+    private int valueCount;
+    private long valueBytes;
+    /**
+     * Ids of the values, only while values are added
+     */
+    private Map<String, Integer> valueIds;
+
+    public TagStore(Directory dir) {
+        DAType type = dir.getDefaultType().isStoring() ? DAType.MMAP : dir.getDefaultType();
+        this.edgeTags = dir.find("postgis_edge_tags", type);
+        this.values = dir.find("postgis_tag_values", type);
+        this.offsets = dir.find("postgis_tag_offsets", type);
+    }
+
+    TagStore create(String[] tagNames, int edges) {
+        edgeTags.create(Math.max(edges, 1) * (long) tagNames.length * 4);
+        values.create(1 << 16);
+        offsets.create(1 << 12);
+        this.tagNames = tagNames.clone();
+        edgeCount = 0;
+        valueCount = 0;
+        valueBytes = 0;
+        valueIds = new HashMap<>();
+        for (String name : tagNames) {
+            getValueId(name);
+        }
+        return this;
+    }
+
+    public boolean loadExisting() {
+        if (!edgeTags.loadExisting() || !values.loadExisting() || !offsets.loadExisting()) {
+            return false;
+        }
+
+        if (edgeTags.getHeader(0) != VERSION) {
+            throw new IllegalStateException("Unsupported version of " + edgeTags.getName()
+                    + ": " + edgeTags.getHeader(0) + ", expected " + VERSION);
+        }
+        edgeCount = edgeTags.getHeader(4);
+        tagNames = new String[edgeTags.getHeader(8)];
+        valueCount = values.getHeader(4);
+        valueBytes = (long) values.getHeader(8) << 32 | (values.getHeader(12) & 0xFFFFFFFFL);
+        for (int i = 0; i < tagNames.length; i++) {
+            tagNames[i] = getValue(i + 1);
+        }
+        valueIds = null;
+        return true;
+    }
+
+    /**
+     * Stores the values of the edge, in the order of the tag names. Null
+     * values are stored as missing.
+     */
+    void setTags(int edgeId, String[] tags) {
+        int tagCount = tagNames.length;
+        long pointer = (long) edgeId * tagCount * 4;
+        edgeTags.ensureCapacity(pointer + tagCount * 4);
+        for (int i = 0; i < tagCount; i++) {
+            String value = i < tags.length ? tags[i] : null;
+            edgeTags.setInt(pointer + i * 4, value == null ? NO_VALUE : getValueId(value));
+        }
+        edgeCount = Math.max(edgeCount, edgeId + 1);
+    }
+
+    /**
+     * Removes the values of the edge, e.g. of a deleted road
+     */
+    void clearTags(int edgeId) {
+        if (edgeId >= edgeCount) {
+            return;
+        }
+
+        long pointer = (long) edgeId * tagNames.length * 4;
+        for (int i = 0; i < tagNames.length; i++) {
+            edgeTags.setInt(pointer + i * 4, NO_VALUE);
+        }
+    }
+
+    private int getValueId(String value) {
+        if (valueIds == null) {
+            // a loaded store is changed by an update, the existing values are reused
+            valueIds = new HashMap<>();
+            for (int id = 1; id <= valueCount; id++) {
+                valueIds.put(getValue(id), id);
+            }
+        }
+
+        Integer id = valueIds.get(value);
+        if (id != null) {
+            return id;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long offsetPointer = (long) valueCount * OFFSET_BYTES;
+        offsets.ensureCapacity(offsetPointer + OFFSET_BYTES);
+        offsets.setInt(offsetPointer, (int) (valueBytes >>> 32));
+        offsets.setInt(offsetPointer + 4, (int) valueBytes);
+
+        values.ensureCapacity(valueBytes + 4 + bytes.length);
+        values.setInt(valueBytes, bytes.length);
+        values.setBytes(valueBytes + 4, bytes, bytes.length);
+        valueBytes += 4 + bytes.length;
+
+        valueIds.put(value, ++valueCount);
+        return valueCount;
+    }
+
+    private String getValue(int id) {
+        long offsetPointer = (long) (id - 1) * OFFSET_BYTES;
+        long pointer = (long) offsets.getInt(offsetPointer) << 32 | (offsets.getInt(offsetPointer + 4) & 0xFFFFFFFFL);
+        byte[] bytes = new byte[values.getInt(pointer)];
+        values.getBytes(pointer + 4, bytes, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param tag index of the tag in {@link #getTagNames}
+     * @return the value or null if the road of the edge has none or the edge
+     * is unknown
+     */
+    public String getTag(int edgeId, int tag) {
+        if (edgeId < 0 || edgeId >= edgeCount || tag < 0 || tag >= tagNames.length) {
+            return null;
+        }
+
+        int id = edgeTags.getInt(((long) edgeId * tagNames.length + tag) * 4);
+        return id == NO_VALUE ? null : getValue(id);
+    }
+
+    /**
+     * @return the value or null if the road of the edge has none, the edge is
+     * unknown or the tag is not stored
+     */
+    public String getTag(int edgeId, String tag) {
+        for (int i = 0; i < tagNames.length; i++) {
+            if (tagNames[i].equals(tag)) {
+                return getTag(edgeId, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the stored tags, the tags_to_copy of the import
+     */
+    public String[] getTagNames() {
+        return tagNames.clone();
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * @return the number of distinct values
+     */
+    public int getValueCount() {
+        return valueCount - tagNames.length;
+    }
+
+    public void flush() {
+        edgeTags.setHeader(0, VERSION);
+        edgeTags.setHeader(4, edgeCount);
+        edgeTags.setHeader(8, tagNames.length);
+        values.setHeader(0, VERSION);
+        values.setHeader(4, valueCount);
+        values.setHeader(8, (int) (valueBytes >>> 32));
+        values.setHeader(12, (int) valueBytes);
+        offsets.setHeader(0, VERSION);
+        edgeTags.flush();
+        values.flush();
+        offsets.flush();
+    }
+
+    @Override
+    public void close() {
+        valueIds = null;
+        edgeTags.close();
+        values.close();
+        offsets.close();
+    }
+}
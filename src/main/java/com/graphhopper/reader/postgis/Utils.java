@@ -9,4 +9,18 @@ public class Utils {
         return new RuntimeException(e);
     }
 
+    /**
+     * Quotes an SQL identifier, e.g. a table or a column name
+     */
+    public static String quoteIdentifier(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Quotes an SQL string literal
+     */
+    public static String quoteLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
 }
@@ -0,0 +1,114 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+
+/**
+ * Decodes (E)WKB line strings and multi line strings straight into the
+ * coordinate buffers of a {@link RoadRecord}, rounding them like the reader
+ * does. Other geometry types are skipped. Both the ISO type codes for Z and M
+ * and the EWKB flags are understood.
+ */
+final class WkbDecoder {
+
+    private static final int LINE_STRING = 2;
+    private static final int MULTI_LINE_STRING = 5;
+
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    private byte[] wkb;
+    private int pos;
+    private boolean littleEndian;
+
+    /**
+     * Adds the parts of the geometry to the road.
+     *
+     * @return false if the geometry is not a (multi) line string, the road
+     * then has no points, like a feature of another geometry type
+     */
+    boolean decode(byte[] wkb, RoadRecord road) {
+        this.wkb = wkb;
+        this.pos = 0;
+        try {
+            if (decodeGeometry(road, true)) {
+                return true;
+            }
+            // a multi geometry can fail after some of its line strings
+            road.clearPoints();
+            return false;
+        } finally {
+            this.wkb = null;
+        }
+    }
+
+    private boolean decodeGeometry(RoadRecord road, boolean allowMulti) {
+        littleEndian = wkb[pos++] == 1;
+        int type = readInt();
+
+        boolean hasZ = (type & EWKB_Z) != 0;
+        boolean hasM = (type & EWKB_M) != 0;
+        if ((type & EWKB_SRID) != 0) {
+            readInt();
+        }
+        type &= 0x0FFFFFFF;
+
+        // ISO WKB: 1000 - Z, 2000 - M, 3000 - ZM
+        int dimensions = type / 1000;
+        type %= 1000;
+        hasZ |= dimensions == 1 || dimensions == 3;
+        hasM |= dimensions == 2 || dimensions == 3;
+
+        if (type == LINE_STRING) {
+            int n = readInt();
+            for (int i = 0; i < n; i++) {
+                double lon = Helper.round6(readDouble());
+                double lat = Helper.round6(readDouble());
+                double ele = hasZ ? Helper.round6(readDouble()) : Double.NaN;
+                if (hasM) {
+                    readDouble();
+                }
+                road.addPoint(lat, lon, ele);
+            }
+            road.endPart();
+            return true;
+        }
+
+        if (type == MULTI_LINE_STRING && allowMulti) {
+            int n = readInt();
+            for (int i = 0; i < n; i++) {
+                if (!decodeGeometry(road, false)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    private int readInt() {
+        int b0 = wkb[pos++] & 0xFF;
+        int b1 = wkb[pos++] & 0xFF;
+        int b2 = wkb[pos++] & 0xFF;
+        int b3 = wkb[pos++] & 0xFF;
+        return littleEndian
+                ? b3 << 24 | b2 << 16 | b1 << 8 | b0
+                : b0 << 24 | b1 << 16 | b2 << 8 | b3;
+    }
+
+    private double readDouble() {
+        long value = 0;
+        if (littleEndian) {
+            for (int i = 7; i >= 0; i--) {
+                value = value << 8 | (wkb[pos + i] & 0xFF);
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                value = value << 8 | (wkb[pos + i] & 0xFF);
+            }
+        }
+        pos += 8;
+        return Double.longBitsToDouble(value);
+    }
+}
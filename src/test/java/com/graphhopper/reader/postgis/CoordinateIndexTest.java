@@ -0,0 +1,82 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CoordinateIndexTest {
+
+    private File location;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("coordinateindex").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        Helper.removeDir(location);
+    }
+
+    @Test
+    public void testKeyRoundTrip() {
+        double[][] points = {{90, 180}, {-90, -180}, {90, -180}, {-90, 180}, {0, 0},
+            {55.755831, 37.617673}, {-33.868820, 151.209296}};
+        for (double[] point : points) {
+            long key = CoordinateIndex.key(point[0], point[1]);
+            assertTrue(key >= 0);
+            assertEquals(point[0], CoordinateIndex.lat(key), 0);
+            assertEquals(point[1], CoordinateIndex.lon(key), 0);
+            assertEquals(key, CoordinateIndex.fixedKey(Math.round(point[0] * 1e6), Math.round(point[1] * 1e6)));
+        }
+
+        // the corners must not run into each other
+        assertNotEquals(CoordinateIndex.key(90, -180), CoordinateIndex.key(-90, 180));
+        assertNotEquals(CoordinateIndex.key(0, 180), CoordinateIndex.key(0.000001, -180));
+        // rounded to 6 decimal places like the reader does
+        assertEquals(CoordinateIndex.key(55.7558312, 37.6176731), CoordinateIndex.key(55.755831, 37.617673));
+        assertNotEquals(CoordinateIndex.key(55.755831, 37.617673), CoordinateIndex.key(55.755832, 37.617673));
+    }
+
+    @Test
+    public void testHeapGrows() {
+        try (CoordinateIndex index = CoordinateIndex.onHeap(1)) {
+            checkGrows(index);
+        }
+    }
+
+    @Test
+    public void testMMapGrows() {
+        try (CoordinateIndex index = CoordinateIndex.offHeap(location, 1)) {
+            checkGrows(index);
+        }
+    }
+
+    private static void checkGrows(CoordinateIndex index) {
+        // far beyond the initial 1024 slots, several resizes
+        int points = 20_000;
+        for (int i = 0; i < points; i++) {
+            index.put(CoordinateIndex.key(i * 0.001, -i * 0.001), i + 1);
+        }
+        // the corners are kept as well
+        index.put(CoordinateIndex.key(90, 180), -1);
+        index.put(CoordinateIndex.key(-90, -180), -2);
+        // putting a key again only changes its state
+        index.put(CoordinateIndex.key(0.5, -0.5), 7);
+
+        assertEquals(points + 2, index.size());
+        for (int i = 0; i < points; i++) {
+            int expected = i == 500 ? 7 : i + 1;
+            assertEquals(expected, index.get(CoordinateIndex.key(i * 0.001, -i * 0.001)));
+        }
+        assertEquals(-1, index.get(CoordinateIndex.key(90, 180)));
+        assertEquals(-2, index.get(CoordinateIndex.key(-90, -180)));
+        assertEquals(0, index.get(CoordinateIndex.key(0.001, 0.001)));
+        assertEquals(0, index.get(CoordinateIndex.key(-90, 180)));
+    }
+}
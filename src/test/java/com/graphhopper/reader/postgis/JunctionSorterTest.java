@@ -0,0 +1,125 @@
+package com.graphhopper.reader.postgis;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JunctionSorterTest {
+
+    private final JunctionSorter sorter = new JunctionSorter(1024, null);
+
+    @After
+    public void tearDown() {
+        sorter.close();
+    }
+
+    @Test
+    public void testSharedEndpoint() {
+        // a - b - c and c - d, c ends both roads
+        sorter.addRoad(road(0, 0, 0, 1, 0, 2));
+        sorter.addRoad(road(0, 2, 0, 3));
+
+        assertEquals(3, sorter.sort());
+        assertArrayEquals(keys(0, 0, 0, 2, 0, 3), towers());
+    }
+
+    @Test
+    public void testCrossingInTheMiddle() {
+        // the roads cross at (1, 1), which ends neither of them
+        sorter.addRoad(road(0, 1, 1, 1, 2, 1));
+        sorter.addRoad(road(1, 0, 1, 1, 1, 2));
+
+        assertEquals(5, sorter.sort());
+        assertArrayEquals(keys(0, 1, 1, 0, 1, 1, 1, 2, 2, 1), towers());
+    }
+
+    @Test
+    public void testPointRepeatedWithinPart() {
+        // the road passes (0, 1) twice, which alone makes no tower
+        sorter.addRoad(road(0, 0, 0, 1, 1, 1, 0, 1, 0, 2));
+
+        assertEquals(2, sorter.sort());
+        assertArrayEquals(keys(0, 0, 0, 2), towers());
+    }
+
+    @Test
+    public void testClosedPart() {
+        // the first point is repeated as the last one, it is a tower once
+        sorter.addRoad(road(0, 0, 0, 1, 1, 1, 0, 0));
+
+        assertEquals(1, sorter.sort());
+        assertArrayEquals(keys(0, 0), towers());
+    }
+
+    @Test
+    public void testMultiPartRoad() {
+        RoadRecord road = new RoadRecord(0);
+        addPart(road, 0, 0, 0, 1, 0, 2);
+        // the second part passes (0, 1), a point inside the first one
+        addPart(road, 1, 0, 0, 1, 1, 2);
+        sorter.addRoad(road);
+
+        assertEquals(5, sorter.sort());
+        assertArrayEquals(keys(0, 0, 0, 1, 0, 2, 1, 0, 1, 2), towers());
+    }
+
+    @Test
+    public void testMergesRuns() {
+        // two long parallel roads joined by a short one at their middle,
+        // enough points for several runs
+        int points = 3000;
+        double[] first = new double[points * 2];
+        double[] second = new double[points * 2];
+        for (int i = 0; i < points; i++) {
+            first[2 * i] = 0;
+            first[2 * i + 1] = i * 0.001;
+            second[2 * i] = 1;
+            second[2 * i + 1] = i * 0.001;
+        }
+        sorter.addRoad(road(first));
+        sorter.addRoad(road(second));
+        sorter.addRoad(road(0, 1.5, 1, 1.5));
+
+        assertEquals(6, sorter.sort());
+        assertArrayEquals(keys(0, 0, 0, 1.5, 0, 2.999, 1, 0, 1, 1.5, 1, 2.999), towers());
+    }
+
+    private long[] towers() {
+        List<Long> towers = new ArrayList<>();
+        sorter.forEachTower(towers::add);
+        long[] result = new long[towers.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = towers.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @param coords lat and lon of the points, in ascending order
+     */
+    private static long[] keys(double... coords) {
+        long[] keys = new long[coords.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = CoordinateIndex.key(coords[2 * i], coords[2 * i + 1]);
+        }
+        return keys;
+    }
+
+    /**
+     * @param coords lat and lon of the points of a single part
+     */
+    private static RoadRecord road(double... coords) {
+        RoadRecord road = new RoadRecord(0);
+        addPart(road, coords);
+        return road;
+    }
+
+    private static void addPart(RoadRecord road, double... coords) {
+        for (int i = 0; i < coords.length; i += 2) {
+            road.addPoint(coords[i], coords[i + 1], Double.NaN);
+        }
+        road.endPart();
+    }
+}
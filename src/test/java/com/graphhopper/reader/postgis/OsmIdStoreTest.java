@@ -0,0 +1,104 @@
+package com.graphhopper.reader.postgis;
+
+import com.carrotsearch.hppc.IntArrayList;
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.util.Helper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OsmIdStoreTest {
+
+    private File location;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("osmidstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        Helper.removeDir(location);
+    }
+
+    @Test
+    public void testGrowsBeyondCreatedSize() {
+        OsmIdStore store = new OsmIdStore(new GHDirectory("", DAType.RAM)).create(1);
+        int edges = 20_000;
+        for (int edge = 0; edge < edges; edge++) {
+            store.setOsmId(edge, 1_000_000_000_000L + edge / 4);
+        }
+
+        assertEquals(edges, store.getEdgeCount());
+        assertEquals(1_000_000_000_000L, store.getOsmId(0));
+        assertEquals(1_000_000_000_000L + 12345 / 4, store.getOsmId(12345));
+        assertEquals(1_000_000_000_000L + (edges - 1) / 4, store.getOsmId(edges - 1));
+        assertEquals(-1, store.getOsmId(edges));
+        assertEquals(-1, store.getOsmId(-1));
+        store.close();
+    }
+
+    @Test
+    public void testFindEdges() {
+        OsmIdStore store = new OsmIdStore(new GHDirectory("", DAType.RAM)).create(6);
+        // the edges of way 20 are created before and after those of the other ways
+        store.setOsmId(0, 20);
+        store.setOsmId(1, 5);
+        store.setOsmId(2, 20);
+        store.setOsmId(3, 7_000_000_000L);
+        store.setOsmId(4, 5);
+        store.setOsmId(5, 20);
+        store.buildWayIndex();
+
+        assertArrayEquals(new int[]{0, 2, 5}, findEdges(store, 20));
+        assertArrayEquals(new int[]{1, 4}, findEdges(store, 5));
+        assertArrayEquals(new int[]{3}, findEdges(store, 7_000_000_000L));
+        assertArrayEquals(new int[0], findEdges(store, 6));
+        assertArrayEquals(new int[0], findEdges(store, 1));
+        assertArrayEquals(new int[0], findEdges(store, 8_000_000_000L));
+
+        // the edges are added to the list
+        IntArrayList edges = new IntArrayList();
+        edges.add(42);
+        assertEquals(2, store.findEdges(5, edges));
+        assertArrayEquals(new int[]{42, 1, 4}, edges.toArray());
+        store.close();
+    }
+
+    @Test
+    public void testLoadExisting() {
+        GHDirectory dir = new GHDirectory(location.getPath(), DAType.RAM_STORE);
+        dir.create();
+        assertFalse(new OsmIdStore(dir).loadExisting());
+
+        OsmIdStore store = new OsmIdStore(dir).create(2);
+        int edges = 3000;
+        for (int edge = 0; edge < edges; edge++) {
+            store.setOsmId(edge, edge % 2 == 0 ? 100 + edge : 5_000_000_000L);
+        }
+        store.buildWayIndex();
+        store.flush();
+        store.close();
+
+        OsmIdStore loaded = new OsmIdStore(new GHDirectory(location.getPath(), DAType.RAM_STORE));
+        assertTrue(loaded.loadExisting());
+        assertEquals(edges, loaded.getEdgeCount());
+        assertEquals(100, loaded.getOsmId(0));
+        assertEquals(5_000_000_000L, loaded.getOsmId(1));
+        assertEquals(100 + 2998, loaded.getOsmId(2998));
+        assertArrayEquals(new int[]{2998}, findEdges(loaded, 100 + 2998));
+        assertEquals(edges / 2, loaded.findEdges(5_000_000_000L, new IntArrayList()));
+        loaded.close();
+    }
+
+    private static int[] findEdges(OsmIdStore store, long osmId) {
+        IntArrayList edges = new IntArrayList();
+        assertEquals(store.findEdges(osmId, edges), edges.size());
+        return edges.toArray();
+    }
+}
@@ -0,0 +1,160 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.util.Helper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RoadSpoolTest {
+
+    private File location;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("roadspool").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        Helper.removeDir(location);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        RoadRecord road = new RoadRecord(2);
+        road.osmId = 10;
+        road.fclass = "primary";
+        road.maxSpeed = "60";
+        road.oneway = "F";
+        road.tags[0] = "Улица Ленина";
+        road.addPoint(55.76, 37.62, Double.NaN);
+        road.addPoint(55.77, 37.63, Double.NaN);
+        road.endPart();
+        road.addPoint(55.77, 37.63, 150.5);
+        road.addPoint(-89.999999, -179.999999, 151);
+        road.endPart();
+
+        RoadRecord restriction = new RoadRecord(2);
+        restriction.osmId = 11;
+        restriction.restriction = "no_left_turn";
+        restriction.restrictionTo = 12;
+        restriction.restrictionVia = 13;
+
+        List<RoadRecord> rows = replay(spool(road, restriction), 2);
+        assertEquals(2, rows.size());
+
+        RoadRecord first = rows.get(0);
+        assertEquals(10, first.osmId);
+        assertEquals("primary", first.fclass);
+        assertEquals("60", first.maxSpeed);
+        assertEquals("F", first.oneway);
+        assertNull(first.restriction);
+        assertEquals(0, first.restrictionTo);
+        assertEquals(0, first.restrictionVia);
+        assertArrayEquals(new String[]{"Улица Ленина", null}, first.tags);
+        assertEquals(2, first.getPartCount());
+        assertEquals(2, first.getPartEnd(0));
+        assertEquals(4, first.getPointCount());
+        assertEquals(55.77, first.lats[1], 0);
+        assertEquals(37.63, first.lons[1], 0);
+        assertTrue(Double.isNaN(first.eles[1]));
+        assertEquals(150.5, first.eles[2], 0);
+        assertEquals(-89.999999, first.lats[3], 1e-9);
+        assertEquals(-179.999999, first.lons[3], 1e-9);
+
+        RoadRecord second = rows.get(1);
+        assertEquals(11, second.osmId);
+        assertEquals("no_left_turn", second.restriction);
+        assertEquals(12, second.restrictionTo);
+        // a via way restriction must not come back as a via node one
+        assertEquals(13, second.restrictionVia);
+        assertEquals(0, second.getPartCount());
+    }
+
+    @Test
+    public void testIncompleteSpoolIsNotReplayed() {
+        RoadRecord road = new RoadRecord(0);
+        road.osmId = 1;
+        RoadSpool spool = new RoadSpool(new File(location, "roads.spool"), true);
+        RoadCursor cursor = spool.record(new ListCursor(Arrays.asList(road, road)));
+        assertTrue(cursor.next(new RoadRecord(0)));
+        cursor.close();
+
+        assertFalse(spool.isComplete());
+        assertFalse(new RoadSpool(new File(location, "roads.spool"), true).isComplete());
+        spool.close();
+    }
+
+    @Test
+    public void testKeptSpoolSurvives() {
+        RoadRecord road = new RoadRecord(0);
+        road.osmId = 7;
+        road.restrictionVia = 8;
+        spool(road);
+
+        RoadSpool reopened = new RoadSpool(new File(location, "roads.spool"), true);
+        assertTrue(reopened.isComplete());
+        List<RoadRecord> rows = replay(reopened, 0);
+        assertEquals(1, rows.size());
+        assertEquals(8, rows.get(0).restrictionVia);
+        reopened.close();
+    }
+
+    private RoadSpool spool(RoadRecord... roads) {
+        RoadSpool spool = new RoadSpool(new File(location, "roads.spool"), true);
+        RoadCursor cursor = spool.record(new ListCursor(Arrays.asList(roads)));
+        RoadRecord road = new RoadRecord(roads[0].tags.length);
+        while (cursor.next(road)) {
+            // the spool is written while the rows are read
+        }
+        cursor.close();
+        assertTrue(spool.isComplete());
+        return spool;
+    }
+
+    private static List<RoadRecord> replay(RoadSpool spool, int tagCount) {
+        List<RoadRecord> rows = new ArrayList<>();
+        RoadCursor cursor = spool.replay();
+        try {
+            RoadRecord road = new RoadRecord(tagCount);
+            while (cursor.next(road)) {
+                RoadRecord copy = new RoadRecord(tagCount);
+                copy.copyFrom(road);
+                rows.add(copy);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static final class ListCursor implements RoadCursor {
+
+        private final List<RoadRecord> roads;
+        private int next;
+
+        ListCursor(List<RoadRecord> roads) {
+            this.roads = roads;
+        }
+
+        @Override
+        public boolean next(RoadRecord road) {
+            if (next == roads.size()) {
+                return false;
+            }
+            road.copyFrom(roads.get(next++));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.graphhopper.reader.postgis;
+
+import com.graphhopper.storage.DAType;
+import com.graphhopper.storage.GHDirectory;
+import com.graphhopper.util.Helper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TagStoreTest {
+
+    private static final String[] TAG_NAMES = {"name", "ref"};
+
+    private File location;
+
+    @Before
+    public void setUp() throws IOException {
+        location = Files.createTempDirectory("tagstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        Helper.removeDir(location);
+    }
+
+    @Test
+    public void testSharedValues() {
+        TagStore store = new TagStore(new GHDirectory("", DAType.RAM)).create(TAG_NAMES, 3);
+        store.setTags(0, new String[]{"Main Street", "A1"});
+        store.setTags(1, new String[]{"Main Street", null});
+        store.setTags(2, new String[]{"Side Street", "A1"});
+
+        assertEquals(3, store.getEdgeCount());
+        // Main Street, Side Street and A1, each stored once
+        assertEquals(3, store.getValueCount());
+        assertEquals("Main Street", store.getTag(1, "name"));
+        assertNull(store.getTag(1, "ref"));
+        assertEquals("A1", store.getTag(2, 1));
+        assertArrayEquals(TAG_NAMES, store.getTagNames());
+        store.close();
+    }
+
+    @Test
+    public void testMissingValues() {
+        TagStore store = new TagStore(new GHDirectory("", DAType.RAM)).create(TAG_NAMES, 2);
+        // fewer values than tags, the rest is missing
+        store.setTags(0, new String[]{"Main Street"});
+
+        assertNull(store.getTag(0, "ref"));
+        assertNull(store.getTag(0, "maxspeed"));
+        assertNull(store.getTag(0, 2));
+        assertNull(store.getTag(-1, 0));
+        // edges not set yet
+        assertNull(store.getTag(1, 0));
+        assertNull(store.getTag(5, 0));
+        store.close();
+    }
+
+    @Test
+    public void testClearTags() {
+        TagStore store = new TagStore(new GHDirectory("", DAType.RAM)).create(TAG_NAMES, 2);
+        store.setTags(0, new String[]{"Main Street", "A1"});
+        store.setTags(1, new String[]{"Main Street", "A1"});
+        store.clearTags(0);
+        store.clearTags(7);
+
+        assertNull(store.getTag(0, "name"));
+        assertNull(store.getTag(0, "ref"));
+        assertEquals("Main Street", store.getTag(1, "name"));
+        assertEquals(2, store.getEdgeCount());
+        store.close();
+    }
+
+    @Test
+    public void testGrowsBeyondCreatedSize() {
+        TagStore store = new TagStore(new GHDirectory("", DAType.RAM)).create(TAG_NAMES, 1);
+        int edges = 20_000;
+        for (int edge = 0; edge < edges; edge++) {
+            store.setTags(edge, new String[]{"Street " + edge, "R" + edge % 10});
+        }
+
+        assertEquals(edges, store.getEdgeCount());
+        assertEquals(edges + 10, store.getValueCount());
+        assertEquals("Street 12345", store.getTag(12345, "name"));
+        assertEquals("R5", store.getTag(12345, "ref"));
+        assertEquals("Street 0", store.getTag(0, "name"));
+        store.close();
+    }
+
+    @Test
+    public void testLoadExisting() {
+        GHDirectory dir = new GHDirectory(location.getPath(), DAType.RAM_STORE);
+        dir.create();
+        assertFalse(new TagStore(dir).loadExisting());
+
+        TagStore store = new TagStore(dir).create(TAG_NAMES, 2);
+        store.setTags(0, new String[]{"Улица Ленина", "A1"});
+        store.setTags(1, new String[]{null, "A1"});
+        store.flush();
+        store.close();
+
+        TagStore loaded = new TagStore(new GHDirectory(location.getPath(), DAType.RAM_STORE));
+        assertTrue(loaded.loadExisting());
+        assertArrayEquals(TAG_NAMES, loaded.getTagNames());
+        assertEquals(2, loaded.getEdgeCount());
+        assertEquals(2, loaded.getValueCount());
+        assertEquals("Улица Ленина", loaded.getTag(0, "name"));
+        assertNull(loaded.getTag(1, "name"));
+        assertEquals("A1", loaded.getTag(1, "ref"));
+
+        // an update reuses the stored values
+        loaded.setTags(2, new String[]{"Улица Ленина", "B2"});
+        assertEquals(3, loaded.getEdgeCount());
+        assertEquals(3, loaded.getValueCount());
+        assertEquals("B2", loaded.getTag(2, "ref"));
+        assertEquals("Улица Ленина", loaded.getTag(0, "name"));
+        loaded.close();
+    }
+}
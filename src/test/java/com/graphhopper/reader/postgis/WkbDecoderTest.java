@@ -0,0 +1,139 @@
+package com.graphhopper.reader.postgis;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WkbDecoderTest {
+
+    private static final int POINT = 1;
+    private static final int LINE_STRING = 2;
+    private static final int MULTI_LINE_STRING = 5;
+
+    private final WkbDecoder decoder = new WkbDecoder();
+    private final RoadRecord road = new RoadRecord(0);
+
+    @Test
+    public void testLineString() {
+        byte[] wkb = lineString(ByteOrder.LITTLE_ENDIAN, LINE_STRING, 2,
+                37.6173001, 55.7558, 37.62, 55.76, 37.63, 55.77);
+
+        assertTrue(decoder.decode(wkb, road));
+        assertEquals(1, road.getPartCount());
+        assertEquals(3, road.getPointCount());
+        assertEquals(55.7558, road.lats[0], 0);
+        // rounded like the reader does
+        assertEquals(37.6173, road.lons[0], 0);
+        assertEquals(55.77, road.lats[2], 0);
+        assertTrue(Double.isNaN(road.eles[0]));
+    }
+
+    @Test
+    public void testBigEndianEwkbWithSridAndZ() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + 4 + 2 * 3 * 8).order(ByteOrder.BIG_ENDIAN);
+        buffer.put((byte) 0).putInt(LINE_STRING | 0x80000000 | 0x20000000).putInt(4326).putInt(2);
+        buffer.putDouble(37.62).putDouble(55.76).putDouble(150);
+        buffer.putDouble(37.63).putDouble(55.77).putDouble(151.5);
+
+        assertTrue(decoder.decode(buffer.array(), road));
+        assertEquals(2, road.getPointCount());
+        assertEquals(55.77, road.lats[1], 0);
+        assertEquals(37.63, road.lons[1], 0);
+        assertEquals(151.5, road.eles[1], 0);
+    }
+
+    @Test
+    public void testIsoZm() {
+        // 3002 - line string with Z and M, M is skipped
+        byte[] wkb = lineString(ByteOrder.LITTLE_ENDIAN, 3002, 4,
+                37.62, 55.76, 150, 1, 37.63, 55.77, 151, 2);
+
+        assertTrue(decoder.decode(wkb, road));
+        assertEquals(2, road.getPointCount());
+        assertEquals(55.77, road.lats[1], 0);
+        assertEquals(151, road.eles[1], 0);
+    }
+
+    @Test
+    public void testMultiLineString() {
+        byte[] wkb = multiLineString(
+                lineString(ByteOrder.LITTLE_ENDIAN, LINE_STRING, 2, 37.62, 55.76, 37.63, 55.77),
+                lineString(ByteOrder.BIG_ENDIAN, LINE_STRING, 2, 37.63, 55.77, 37.64, 55.78, 37.65, 55.79));
+
+        assertTrue(decoder.decode(wkb, road));
+        assertEquals(2, road.getPartCount());
+        assertEquals(5, road.getPointCount());
+        assertEquals(0, road.getPartStart(0));
+        assertEquals(2, road.getPartEnd(0));
+        assertEquals(2, road.getPartStart(1));
+        assertEquals(5, road.getPartEnd(1));
+        // the shared point is kept in both parts
+        assertEquals(road.lats[1], road.lats[2], 0);
+        assertEquals(55.79, road.lats[4], 0);
+    }
+
+    @Test
+    public void testPointRepeatedWithinPart() {
+        byte[] wkb = lineString(ByteOrder.LITTLE_ENDIAN, LINE_STRING, 2,
+                37.62, 55.76, 37.63, 55.77, 37.64, 55.76, 37.63, 55.77, 37.65, 55.78);
+
+        assertTrue(decoder.decode(wkb, road));
+        assertEquals(1, road.getPartCount());
+        assertEquals(5, road.getPointCount());
+        assertEquals(road.lats[1], road.lats[3], 0);
+        assertEquals(road.lons[1], road.lons[3], 0);
+    }
+
+    @Test
+    public void testOtherGeometryHasNoPoints() {
+        road.osmId = 5;
+
+        assertFalse(decoder.decode(point(37.62, 55.76), road));
+        assertEquals(0, road.getPartCount());
+        assertEquals(0, road.getPointCount());
+        // the attributes are kept
+        assertEquals(5, road.osmId);
+    }
+
+    @Test
+    public void testFailedMultiGeometryKeepsNoPoints() {
+        byte[] wkb = multiLineString(
+                lineString(ByteOrder.LITTLE_ENDIAN, LINE_STRING, 2, 37.62, 55.76, 37.63, 55.77),
+                point(37.62, 55.76));
+
+        assertFalse(decoder.decode(wkb, road));
+        assertEquals(0, road.getPartCount());
+        assertEquals(0, road.getPointCount());
+    }
+
+    /**
+     * @param coords lon, lat and the other ordinates of each point
+     */
+    private static byte[] lineString(ByteOrder order, int type, int dimensions, double... coords) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + coords.length * 8).order(order);
+        buffer.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 1 : 0)).putInt(type).putInt(coords.length / dimensions);
+        for (double coord : coords) {
+            buffer.putDouble(coord);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] point(double lon, double lat) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 1).putInt(POINT).putDouble(lon).putDouble(lat);
+        return buffer.array();
+    }
+
+    private static byte[] multiLineString(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(1 + 4 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 1).putInt(MULTI_LINE_STRING).putInt(parts.length);
+        out.write(header.array(), 0, header.capacity());
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}